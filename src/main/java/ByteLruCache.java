@@ -0,0 +1,93 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of byte arrays, such as encoded rasters or serialized responses, that holds at most a
+ * fixed number of bytes. When it is full, the least recently used entries are evicted first.
+ */
+public class ByteLruCache {
+    private final long budget;
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75F, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param budget the most bytes of entries to hold at once.
+     */
+    public ByteLruCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Gets the bytes cached under key, counting a hit or a miss.
+     * @return the cached bytes, or null if there are none.
+     */
+    public synchronized byte[] get(String key) {
+        byte[] value = entries.get(key);
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    /**
+     * Caches value under key, evicting the least recently used entries until the cache is
+     * back within its budget. A value larger than the whole budget is not cached.
+     */
+    public synchronized void put(String key, byte[] value) {
+        if (value.length > budget) {
+            return;
+        }
+        byte[] old = entries.put(key, value);
+        if (old != null) {
+            bytes -= old.length;
+        }
+        bytes += value.length;
+        Iterator<Map.Entry<String, byte[]>> eldest = entries.entrySet().iterator();
+        while (bytes > budget) {
+            bytes -= eldest.next().getValue().length;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /** Removes every cached entry. The hit and miss counts are kept. */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    /** Gets the number of bytes currently cached. */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    /** Gets the number of entries currently cached. */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ByteLruCache: " + entries.size() + " entries, " + bytes + "/" + budget
+                + " bytes, " + hits + " hits, " + misses + " misses, " + evictions
+                + " evictions";
+    }
+}
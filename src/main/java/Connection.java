@@ -11,6 +11,7 @@ public class Connection {
     private Point from;
     private Point to;
     private Double distance;
+    private String name;
 
     public Connection(Point from, Point to, Long idFrom, Long idTo) {
         this.from = from;
@@ -19,6 +20,14 @@ public class Connection {
         this.idTo = idTo;
         this.distance = calculatedistance(from, to);
     }
+
+    /**
+     * A connection along a road with the given name, or null if the road has none.
+     */
+    public Connection(Point from, Point to, Long idFrom, Long idTo, String name) {
+        this(from, to, idFrom, idTo);
+        this.name = name;
+    }
     static double calculatedistance(Point from, Point to) {
         return sqrt((from.x - to.x) * (from.x - to.x) + (from.y - to.y) * (from.y - to.y));
     }
@@ -43,4 +52,9 @@ public class Connection {
 
         return distance;
     }
+
+    /** Gets the name of the road, or null if it has none. */
+    public String getName() {
+        return name;
+    }
 }
@@ -0,0 +1,260 @@
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * A spatial index of the road segments of a GraphDB. The root tile is divided into a uniform
+ * grid of cells, and every cell lists the segments whose bounding box overlaps it. Segments
+ * are numbered from 0 and their endpoints kept in primitive arrays, so queries allocate
+ * nothing.
+ */
+public class EdgeGrid {
+    private static final double ULLON = MapServer.ROOT_ULLON, ULLAT = MapServer.ROOT_ULLAT,
+            LRLON = MapServer.ROOT_LRLON, LRLAT = MapServer.ROOT_LRLAT;
+
+    /* Endpoints of every segment, as longitude (x) and latitude (y). */
+    final double[] x1;
+    final double[] y1;
+    final double[] x2;
+    final double[] y2;
+    /* The node ids at the ends of every segment. */
+    final long[] from;
+    final long[] to;
+    /* The name of the road of every segment, or null. */
+    final String[] names;
+
+    private final int cells;
+    private final double cellLon;
+    private final double cellLat;
+    /* Segments of cell c are cellEdges[cellStart[c]] to cellEdges[cellStart[c + 1] - 1]. */
+    private final int[] cellStart;
+    private final int[] cellEdges;
+
+    /**
+     * Indexes the roads of g, each pair of connected nodes as one segment. The grid has about
+     * the square root of the number of segments cells along each side, so that there are about
+     * as many cells as segments, however many roads the map has.
+     * @param g the graph of roads.
+     */
+    public EdgeGrid(GraphDB g) {
+        ArrayList<Connection> segments = new ArrayList<>();
+        for (Map.Entry<Long, ArrayList<Connection>> entry : g.con.entrySet()) {
+            for (Connection c : entry.getValue()) {
+                /* Every road is connected both ways; keep one of the two. */
+                if (c.getIdFrom() < c.getIdTo()) {
+                    segments.add(c);
+                }
+            }
+        }
+        int n = segments.size();
+        x1 = new double[n];
+        y1 = new double[n];
+        x2 = new double[n];
+        y2 = new double[n];
+        from = new long[n];
+        to = new long[n];
+        names = new String[n];
+        for (int i = 0; i < n; i++) {
+            Connection c = segments.get(i);
+            Point p = g.NodeDB.get(c.getIdFrom()).getP();
+            Point q = g.NodeDB.get(c.getIdTo()).getP();
+            x1[i] = p.x;
+            y1[i] = p.y;
+            x2[i] = q.x;
+            y2[i] = q.y;
+            from[i] = c.getIdFrom();
+            to[i] = c.getIdTo();
+            names[i] = c.getName();
+        }
+
+        cells = Math.max(1, (int) Math.ceil(Math.sqrt(n)));
+        cellLon = (LRLON - ULLON) / cells;
+        cellLat = (ULLAT - LRLAT) / cells;
+        /* Count the segments of every cell, then fill them in. */
+        cellStart = new int[cells * cells + 1];
+        for (int i = 0; i < n; i++) {
+            for (int r = row(Math.max(y1[i], y2[i])); r <= row(Math.min(y1[i], y2[i])); r++) {
+                for (int c = column(Math.min(x1[i], x2[i]));
+                        c <= column(Math.max(x1[i], x2[i])); c++) {
+                    cellStart[r * cells + c + 1]++;
+                }
+            }
+        }
+        for (int c = 0; c < cells * cells; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        cellEdges = new int[cellStart[cells * cells]];
+        int[] filled = new int[cells * cells];
+        for (int i = 0; i < n; i++) {
+            for (int r = row(Math.max(y1[i], y2[i])); r <= row(Math.min(y1[i], y2[i])); r++) {
+                for (int c = column(Math.min(x1[i], x2[i]));
+                        c <= column(Math.max(x1[i], x2[i])); c++) {
+                    int cell = r * cells + c;
+                    cellEdges[cellStart[cell] + filled[cell]++] = i;
+                }
+            }
+        }
+    }
+
+    /** Gets the number of segments. */
+    public int size() {
+        return x1.length;
+    }
+
+    /**
+     * Calls visitor once with every segment that intersects the box.
+     * @param ullon the upper left longitude of the box.
+     * @param ullat the upper left latitude of the box.
+     * @param lrlon the lower right longitude of the box.
+     * @param lrlat the lower right latitude of the box.
+     * @param visitor is given the number of each segment.
+     */
+    public void forEachIntersecting(double ullon, double ullat, double lrlon, double lrlat,
+            IntConsumer visitor) {
+        int minC = column(ullon);
+        int maxC = column(lrlon);
+        int minR = row(ullat);
+        int maxR = row(lrlat);
+        for (int r = minR; r <= maxR; r++) {
+            for (int c = minC; c <= maxC; c++) {
+                int cell = r * cells + c;
+                for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                    int i = cellEdges[k];
+                    /* A segment is listed in every cell it overlaps; visit it only from the
+                     * first of those cells that the box covers. */
+                    int firstC = Math.max(minC, column(Math.min(x1[i], x2[i])));
+                    int firstR = Math.max(minR, row(Math.max(y1[i], y2[i])));
+                    if (c == firstC && r == firstR
+                            && intersects(i, ullon, ullat, lrlon, lrlat)) {
+                        visitor.accept(i);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the segment nearest to (lon, lat), by searching rings of cells around it outwards
+     * until no closer segment can remain.
+     * @param nearest if not null, receives the point of the segment nearest to (lon, lat), as
+     *                {lon, lat}.
+     * @return the segment, or -1 if there are none.
+     */
+    public int nearest(double lon, double lat, double[] nearest) {
+        int cx = column(lon);
+        int cy = row(lat);
+        double ringWidth = Math.min(cellLon, cellLat);
+        int best = -1;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int ring = 0; ring < cells; ring++) {
+            for (int r = cy - ring; r <= cy + ring; r++) {
+                if (r < 0 || r >= cells) {
+                    continue;
+                }
+                /* Inner rows of the ring only have cells at its left and right edges. */
+                int step = r == cy - ring || r == cy + ring ? 1 : Math.max(1, 2 * ring);
+                for (int c = cx - ring; c <= cx + ring; c += step) {
+                    if (c < 0 || c >= cells) {
+                        continue;
+                    }
+                    int cell = r * cells + c;
+                    for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                        int i = cellEdges[k];
+                        double distance = distanceSquared(i, lon, lat);
+                        if (distance < bestDistance) {
+                            bestDistance = distance;
+                            best = i;
+                        }
+                    }
+                }
+            }
+            /* Segments only in further rings are at least ring cells away. Segments beyond
+             * the root tile are listed in its edge cells, and are further still. */
+            double bound = ring * ringWidth;
+            if (best >= 0 && bound * bound >= bestDistance) {
+                break;
+            }
+        }
+        if (best >= 0 && nearest != null) {
+            double t = projection(best, lon, lat);
+            nearest[0] = x1[best] + t * (x2[best] - x1[best]);
+            nearest[1] = y1[best] + t * (y2[best] - y1[best]);
+        }
+        return best;
+    }
+
+    /**
+     * Gets how far along segment i, from 0 at its start to 1 at its end, the point nearest to
+     * (lon, lat) is.
+     */
+    private double projection(int i, double lon, double lat) {
+        double dx = x2[i] - x1[i];
+        double dy = y2[i] - y1[i];
+        double length = dx * dx + dy * dy;
+        if (length == 0) {
+            return 0;
+        }
+        return Math.max(0, Math.min(1, ((lon - x1[i]) * dx + (lat - y1[i]) * dy) / length));
+    }
+
+    private double distanceSquared(int i, double lon, double lat) {
+        double t = projection(i, lon, lat);
+        double dx = x1[i] + t * (x2[i] - x1[i]) - lon;
+        double dy = y1[i] + t * (y2[i] - y1[i]) - lat;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Tells whether segment i intersects the box, by clipping it to the box.
+     */
+    boolean intersects(int i, double ullon, double ullat, double lrlon, double lrlat) {
+        return clip(x1[i], y1[i], x2[i], y2[i], ullon, ullat, lrlon, lrlat, null);
+    }
+
+    /**
+     * Clips the segment from (ax, ay) to (bx, by) to the box, with the Liang-Barsky algorithm.
+     * @param clipped if not null, receives the clipped endpoints as {ax, ay, bx, by}.
+     * @return whether any of the segment lies in the box.
+     */
+    static boolean clip(double ax, double ay, double bx, double by, double ullon, double ullat,
+            double lrlon, double lrlat, double[] clipped) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double[] p = {-dx, dx, -dy, dy};
+        double[] q = {ax - ullon, lrlon - ax, ay - lrlat, ullat - ay};
+        double t0 = 0;
+        double t1 = 1;
+        for (int k = 0; k < 4; k++) {
+            if (p[k] == 0) {
+                if (q[k] < 0) {
+                    return false;
+                }
+            } else {
+                double t = q[k] / p[k];
+                if (p[k] < 0) {
+                    t0 = Math.max(t0, t);
+                } else {
+                    t1 = Math.min(t1, t);
+                }
+                if (t0 > t1) {
+                    return false;
+                }
+            }
+        }
+        if (clipped != null) {
+            clipped[0] = ax + t0 * dx;
+            clipped[1] = ay + t0 * dy;
+            clipped[2] = ax + t1 * dx;
+            clipped[3] = ay + t1 * dy;
+        }
+        return true;
+    }
+
+    private int column(double lon) {
+        return Math.max(0, Math.min(cells - 1, (int) Math.floor((lon - ULLON) / cellLon)));
+    }
+
+    private int row(double lat) {
+        return Math.max(0, Math.min(cells - 1, (int) Math.floor((ULLAT - lat) / cellLat)));
+    }
+}
@@ -0,0 +1,418 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import spark.HaltException;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+import static spark.Spark.halt;
+
+/**
+ * Runs the requests of one group of endpoints on threads of their own, so that a burst of
+ * heavy requests to one endpoint cannot take the threads and CPU another endpoint needs: raster
+ * requests queue behind raster requests, not in front of autocomplete.
+ * Each executor admits a bounded number of requests, as many as it has threads and queue
+ * slots. Those it has no room for are refused at once with 503 and a Retry-After header rather
+ * than queued without end, and a request that is not answered before its deadline, waiting in
+ * the queue included, is cancelled and answered with 503 as well. Admission is counted from
+ * the start of the handler to its end, so the endpoints of an executor never hold more request
+ * threads than capacity, and a server with enough request threads for the capacity of all its
+ * executors cannot run out of them for any one endpoint.
+ * <p>Handlers run on the request thread: they read the request, hand the work to the executor
+ * with call or stream, and send what the work returns. The work never sees the request or
+ * response, so work still running past its deadline cannot write to a response that has
+ * already been answered.
+ * <p>Work that splits into parallel parts, such as a batch, runs them with parallel on a
+ * ForkJoinPool of the executor's own, as many threads as the executor has, rather than on the
+ * common pool the whole server shares, so a batch takes no more CPU than its endpoint allows.
+ * <p>The time requests take and wait in the queue, the bytes they return and the requests
+ * refused are recorded in the server's metrics, labelled with the name of the endpoints.
+ */
+public class EndpointExecutor {
+    /** HTTP response for a request refused or timed out. */
+    static final int UNAVAILABLE_RESPONSE = 503;
+    /** The most parts of a streamed body waiting to be sent. */
+    private static final int STREAM_PARTS = 2;
+    /* Marks the end of a streamed body. */
+    private static final byte[] END = new byte[0];
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final int capacity;
+    /* A permit for every request admitted, held by its request thread until it is answered. */
+    private final Semaphore admitted;
+    private final ForkJoinPool parallelPool;
+    private final long deadlineNanos;
+    private final int retryAfterSeconds;
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final LatencyHistogram latency;
+    private final LatencyHistogram waiting;
+    private final LongAdder bytesOut;
+
+    /**
+     * @param name names the endpoints, for thread names and error messages.
+     * @param threads the most requests run at once.
+     * @param queueLimit the most requests waiting to run; more are refused.
+     * @param deadlineMillis the longest a request may wait and run.
+     * @param retryAfterSeconds how long refused clients are told to wait before retrying.
+     * @param metrics the metrics to record the requests in.
+     */
+    public EndpointExecutor(String name, int threads, int queueLimit, long deadlineMillis,
+            int retryAfterSeconds, Metrics metrics) {
+        this.name = name;
+        this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.capacity = threads + queueLimit;
+        this.admitted = new Semaphore(capacity);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueLimit), runnable -> {
+                    Thread thread = new Thread(runnable, name + "-endpoint");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        this.parallelPool = new ForkJoinPool(threads, pool -> {
+            ForkJoinWorkerThread thread =
+                    ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName(name + "-parallel-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+        String labels = "endpoint=\"" + name + "\"";
+        latency = metrics.histogram("bearmaps_request_seconds",
+                "Time from receiving a request to answering it.", labels);
+        waiting = metrics.histogram("bearmaps_queue_seconds",
+                "Time requests waited for a thread.", labels);
+        bytesOut = metrics.counter("bearmaps_response_bytes_total",
+                "Bytes of response bodies sent.", labels);
+        metrics.counter("bearmaps_rejected_total", "Requests refused for lack of room.",
+                labels, rejected::get);
+        metrics.counter("bearmaps_timed_out_total", "Requests cancelled at their deadline.",
+                labels, timedOut::get);
+        metrics.gauge("bearmaps_active_requests", "Requests running.", labels, this::active);
+        metrics.gauge("bearmaps_queued_requests", "Requests waiting to run.", labels,
+                this::queued);
+    }
+
+    /**
+     * Work that writes a response body, run on an executor thread.
+     */
+    public interface BodyWriter {
+        /**
+         * Writes the body to out, having first put the headers to send with it in headers.
+         * Every flush of out sends what was written so far, so the client gets the body in
+         * parts as they are ready.
+         * @throws InterruptedIOException if the request passed its deadline or was abandoned,
+         * to stop the work.
+         */
+        void write(Map<String, String> headers, OutputStream out) throws Exception;
+    }
+
+    /**
+     * Gets a route that admits the request, refusing it with 503 if there is no room, and
+     * records the time route takes and the bytes of the body it returns. route runs on the
+     * request thread, and hands its work to call or stream.
+     */
+    public Route wrap(Route route) {
+        return (req, res) -> handle(route, req, res);
+    }
+
+    private Object handle(Route route, Request req, Response res) throws Exception {
+        long arrival = System.nanoTime();
+        if (!admitted.tryAcquire()) {
+            throw refuse(res);
+        }
+        try {
+            Object body = route.handle(req, res);
+            if (body instanceof byte[]) {
+                bytesOut.add(((byte[]) body).length);
+            } else if (body instanceof String) {
+                bytesOut.add(utf8Length((String) body));
+            }
+            return body;
+        } finally {
+            admitted.release();
+            latency.recordSince(arrival);
+        }
+    }
+
+    /**
+     * Runs work on this executor and waits for its answer, for the request thread to send.
+     * @param res the response, which is only given a Retry-After header if the work is
+     * refused or times out.
+     * @return what work returned.
+     * @throws spark.HaltException with 503 if the work is refused or not done by its deadline.
+     */
+    public <T> T call(Response res, Callable<T> work) throws Exception {
+        long arrival = System.nanoTime();
+        Future<T> answer = submit(res, () -> {
+            waiting.recordSince(arrival);
+            return work.call();
+        });
+        try {
+            return answer.get(arrival + deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            cancel(answer);
+            res.header("Retry-After", String.valueOf(retryAfterSeconds));
+            throw halt(UNAVAILABLE_RESPONSE, "Request failed - " + name + " request timed out.");
+        } catch (InterruptedException e) {
+            answer.cancel(true);
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Runs body on this executor and sends what it writes on the request thread, part by
+     * part as body flushes it. Until the first part is sent, a request refused or past its
+     * deadline is answered with 503. Once the body has begun, the response can no longer be
+     * changed: body is stopped at its next flush past the deadline, and the response is cut
+     * short by an IOException, which the client sees as a truncated body.
+     * @param res the response to send the headers and body of body to.
+     * @return the number of bytes sent.
+     * @throws spark.HaltException with 503 if the work is refused or not begun by its deadline.
+     */
+    public long stream(Response res, BodyWriter body) throws Exception {
+        long arrival = System.nanoTime();
+        long deadline = arrival + deadlineNanos;
+        Pipe pipe = new Pipe(deadline);
+        Map<String, String> headers = new HashMap<>();
+        Future<Object> answer = submit(res, () -> {
+            waiting.recordSince(arrival);
+            try {
+                body.write(headers, pipe);
+                pipe.flush();
+            } catch (Exception | Error e) {
+                pipe.failure = e;
+            }
+            pipe.finish();
+            return null;
+        });
+        OutputStream out = null;
+        long sent = 0;
+        try {
+            while (true) {
+                byte[] part = pipe.parts.poll(deadline - System.nanoTime(),
+                        TimeUnit.NANOSECONDS);
+                if (part == null) {
+                    cancel(answer);
+                    pipe.abandoned = true;
+                    if (out == null) {
+                        res.header("Retry-After", String.valueOf(retryAfterSeconds));
+                        throw halt(UNAVAILABLE_RESPONSE, "Request failed - " + name
+                                + " request timed out.");
+                    }
+                    throw new InterruptedIOException(name + " request timed out after "
+                            + sent + " bytes.");
+                }
+                if (part == END) {
+                    break;
+                }
+                if (out == null) {
+                    headers.forEach(res::header);
+                    out = res.raw().getOutputStream();
+                }
+                out.write(part);
+                out.flush();
+                sent += part.length;
+            }
+        } catch (InterruptedException e) {
+            pipe.abandoned = true;
+            answer.cancel(true);
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (IOException e) {
+            /* The client went away, or the body timed out; either way stop the work. */
+            pipe.abandoned = true;
+            answer.cancel(true);
+            throw e;
+        } finally {
+            bytesOut.add(sent);
+        }
+        Throwable failure = pipe.failure;
+        if (failure instanceof Exception) {
+            throw (Exception) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (out == null) {
+            headers.forEach(res::header);
+        }
+        return sent;
+    }
+
+    /**
+     * Runs work on this executor's ForkJoinPool and waits for it, from work running on this
+     * executor. Parallel streams and fork/join tasks work starts run in the same pool.
+     * @return what work returned.
+     */
+    public <T> T parallel(Callable<T> work) {
+        return parallelPool.invoke(ForkJoinTask.adapt(work));
+    }
+
+    /**
+     * Submits task to the executor, refusing the request with 503 if there is no room.
+     */
+    private <T> Future<T> submit(Response res, Callable<T> task) {
+        try {
+            return executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            throw refuse(res);
+        }
+    }
+
+    /**
+     * Refuses a request for lack of room with 503, asking the client to retry later.
+     */
+    private HaltException refuse(Response res) {
+        rejected.incrementAndGet();
+        res.header("Retry-After", String.valueOf(retryAfterSeconds));
+        return halt(UNAVAILABLE_RESPONSE, "Request failed - too many " + name
+                + " requests, try again later.");
+    }
+
+    /**
+     * Cancels work past its deadline: interrupts it if it is running, and frees its queue slot
+     * if not.
+     */
+    private void cancel(Future<?> answer) {
+        answer.cancel(true);
+        executor.remove((Runnable) answer);
+        timedOut.incrementAndGet();
+    }
+
+    private static Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return e;
+    }
+
+    /**
+     * The stream a BodyWriter writes to. Every flush hands what was written since the last
+     * one to the request thread, waiting while it is still sending earlier parts, and fails
+     * once the deadline has passed or the request thread has given up.
+     */
+    private static class Pipe extends OutputStream {
+        final BlockingQueue<byte[]> parts = new ArrayBlockingQueue<>(STREAM_PARTS);
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final long deadline;
+        volatile boolean abandoned;
+        volatile Throwable failure;
+
+        Pipe(long deadline) {
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void write(int b) {
+            buffer.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buffer.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buffer.size() > 0) {
+                hand(buffer.toByteArray());
+                buffer.reset();
+            }
+        }
+
+        /** Hands the end of the body to the request thread, unless it has given up. */
+        void finish() {
+            try {
+                hand(END);
+            } catch (IOException e) {
+                /* The request thread has given up and will not read it. */
+            }
+        }
+
+        private void hand(byte[] part) throws IOException {
+            try {
+                long left = deadline - System.nanoTime();
+                if (abandoned || left <= 0 || !parts.offer(part, left, TimeUnit.NANOSECONDS)) {
+                    throw new InterruptedIOException("The request passed its deadline.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("The request was cancelled.");
+            }
+        }
+    }
+
+    /**
+     * Counts bytes a handler wrote to the response itself, rather than returned or streamed.
+     */
+    public void sent(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    private static long utf8Length(String body) {
+        long length = body.length();
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c >= 0x800 && !Character.isSurrogate(c)) {
+                length += 2;
+            } else if (c >= 0x80) {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Gets the most requests admitted at once, running or waiting, and so the most request
+     * threads the endpoints of this executor hold.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** Gets the number of requests running. */
+    public int active() {
+        return executor.getActiveCount();
+    }
+
+    /** Gets the number of requests waiting to run. */
+    public int queued() {
+        return executor.getQueue().size();
+    }
+
+    /** Gets the number of requests refused for lack of room. */
+    public long rejected() {
+        return rejected.get();
+    }
+
+    /** Gets the number of requests cancelled at their deadline. */
+    public long timedOut() {
+        return timedOut.get();
+    }
+}
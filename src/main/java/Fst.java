@@ -0,0 +1,471 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A minimal acyclic finite-state transducer from strings to non-negative ints, read in place
+ * from a ByteBuffer, which may be a memory-mapped file. Every arc carries a letter and an
+ * output, and the output of a string is the sum of the outputs along its path plus the final
+ * output of the state it ends in. Outputs are pushed as close to the start state as they can
+ * go, so the sum of the outputs along any path is the smallest output of the strings starting
+ * with that path, and the smallest outputs under a prefix can be found best first.
+ * <p>A state is a flags byte, whose lowest bit tells whether the state is final, the final
+ * output as an int if it is, the number of arcs as a short, and then its arcs sorted by
+ * letter, each the letter as a char, the output as an int and the address of the target state
+ * as an int. Addresses are byte offsets from the start of the buffer.
+ */
+public class Fst {
+    private static final int FINAL = 1;
+    private static final int ARC_SIZE = 10;
+
+    private final ByteBuffer buffer;
+    private final int root;
+
+    /**
+     * @param buffer the states; read with absolute gets only, so it may be shared.
+     * @param root the address of the start state.
+     */
+    public Fst(ByteBuffer buffer, int root) {
+        this.buffer = buffer;
+        this.root = root;
+    }
+
+    /** Gets the address of the start state. */
+    public int root() {
+        return root;
+    }
+
+    /** Tells whether a state is final. */
+    public boolean isFinal(int state) {
+        return (buffer.get(state) & FINAL) != 0;
+    }
+
+    /** Gets the final output of a final state. */
+    public int finalOutput(int state) {
+        return buffer.getInt(state + 1);
+    }
+
+    /** Gets the number of arcs leaving a state. */
+    public int arcCount(int state) {
+        return buffer.getShort(arcCountAddress(state)) & 0xFFFF;
+    }
+
+    /** Gets the address of arc i of a state, in order of letter. */
+    public int arc(int state, int i) {
+        return arcCountAddress(state) + 2 + i * ARC_SIZE;
+    }
+
+    /** Gets the letter of an arc. */
+    public char label(int arc) {
+        return buffer.getChar(arc);
+    }
+
+    /** Gets the output of an arc. */
+    public int output(int arc) {
+        return buffer.getInt(arc + 2);
+    }
+
+    /** Gets the state an arc leads to. */
+    public int target(int arc) {
+        return buffer.getInt(arc + 6);
+    }
+
+    private int arcCountAddress(int state) {
+        return state + ((buffer.get(state) & FINAL) != 0 ? 5 : 1);
+    }
+
+    /**
+     * Finds the arc of a state with the given letter, by binary search.
+     * @return the arc's address, or -1 if there is none.
+     */
+    public int findArc(int state, char letter) {
+        int low = 0;
+        int high = arcCount(state) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            char label = label(arc(state, mid));
+            if (label < letter) {
+                low = mid + 1;
+            } else if (label > letter) {
+                high = mid - 1;
+            } else {
+                return arc(state, mid);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Follows the letters of prefix from the start state.
+     * @return {state, sum of the outputs on the way}, or null if no string starts with prefix.
+     */
+    public int[] walk(CharSequence prefix) {
+        return walk(prefix, 0, prefix.length());
+    }
+
+    /**
+     * Follows the letters start to end - 1 of text from the start state.
+     * @return {state, sum of the outputs on the way}, or null if no string starts with them.
+     */
+    public int[] walk(CharSequence text, int start, int end) {
+        int state = root;
+        int output = 0;
+        for (int i = start; i < end; i++) {
+            int arc = findArc(state, text.charAt(i));
+            if (arc < 0) {
+                return null;
+            }
+            output += output(arc);
+            state = target(arc);
+        }
+        return new int[]{state, output};
+    }
+
+    /**
+     * Gets the output of a string.
+     * @return the output, or -1 if the transducer does not accept the string.
+     */
+    public int get(CharSequence key) {
+        return get(key, 0, key.length());
+    }
+
+    /**
+     * Gets the output of the letters start to end - 1 of text.
+     * @return the output, or -1 if the transducer does not accept them.
+     */
+    public int get(CharSequence text, int start, int end) {
+        int[] at = walk(text, start, end);
+        if (at == null || !isFinal(at[0])) {
+            return -1;
+        }
+        return at[1] + finalOutput(at[0]);
+    }
+
+    /**
+     * Gets the output of the first string in order starting at a state.
+     * @param output the sum of the outputs on the way to the state.
+     */
+    public int firstOutput(int state, int output) {
+        while (!isFinal(state)) {
+            int arc = arc(state, 0);
+            output += output(arc);
+            state = target(arc);
+        }
+        return output + finalOutput(state);
+    }
+
+    /**
+     * Gets the output of the last string in order starting at a state.
+     * @param output the sum of the outputs on the way to the state.
+     */
+    public int lastOutput(int state, int output) {
+        int arcs;
+        while ((arcs = arcCount(state)) > 0) {
+            int arc = arc(state, arcs - 1);
+            output += output(arc);
+            state = target(arc);
+        }
+        return output + finalOutput(state);
+    }
+
+    /**
+     * Finds the smallest outputs of the strings starting at a state, smallest first, by a best
+     * first search that only expands the paths that can still lead to them.
+     * @param output the sum of the outputs on the way to the state.
+     * @param n the most outputs to find.
+     * @return the outputs found.
+     */
+    public int[] smallest(int state, int output, int n) {
+        /* Grown as outputs are found, since n may be far more than there are. */
+        int[] found = new int[Math.max(Math.min(n, 16), 0)];
+        int count = 0;
+        /* Each entry is the smallest output it can lead to in the high half, and in the low
+         * half the state to expand, or -1 for an output that is complete. */
+        LongHeap heap = new LongHeap();
+        heap.add((long) output << 32 | state);
+        while (count < n && !heap.isEmpty()) {
+            long entry = heap.poll();
+            int bound = (int) (entry >>> 32);
+            int at = (int) entry;
+            if (at == -1) {
+                if (count == found.length) {
+                    found = Arrays.copyOf(found, (int) Math.min(n, 2L * count));
+                }
+                found[count++] = bound;
+                continue;
+            }
+            if (isFinal(at)) {
+                heap.add((long) (bound + finalOutput(at)) << 32 | 0xFFFFFFFFL);
+            }
+            for (int i = 0, arcs = arcCount(at); i < arcs; i++) {
+                int arc = arc(at, i);
+                heap.add((long) (bound + output(arc)) << 32 | target(arc));
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /** A binary min-heap of longs. */
+    private static class LongHeap {
+        private long[] items = new long[16];
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void add(long item) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, 2 * size);
+            }
+            int i = size++;
+            while (i > 0 && items[(i - 1) / 2] > item) {
+                items[i] = items[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            items[i] = item;
+        }
+
+        long poll() {
+            long top = items[0];
+            long last = items[--size];
+            int i = 0;
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && items[child + 1] < items[child]) {
+                    child++;
+                }
+                if (items[child] >= last) {
+                    break;
+                }
+                items[i] = items[child];
+                i = child;
+            }
+            items[i] = last;
+            return top;
+        }
+    }
+
+    /**
+     * Builds a minimal transducer from strings added in sorted order, with the incremental
+     * algorithm of Daciuk and of Mihov and Maurel: states are compiled, and merged with an
+     * equal state compiled before, as soon as no later string can reach them. The states not
+     * compiled yet are reused from string to string, and compiled states are found again by
+     * hashing their bytes in place, so building allocates little more than its output.
+     */
+    public static class Builder {
+        private byte[] out = new byte[1024];
+        private int size;
+        /* Compiled states by the hash of their bytes, open addressing; -1 is empty. */
+        private int[] registry = newTable(1024);
+        private int registered;
+        /* The states along the last string added, not compiled yet. */
+        private final ArrayList<PendingState> frontier = new ArrayList<>();
+        private String last;
+
+        public Builder() {
+            frontier.add(new PendingState());
+        }
+
+        /**
+         * Adds a string, which must sort after every string added before.
+         * @param output the output of the string, not negative.
+         */
+        public void add(String key, int output) {
+            if (last != null && key.compareTo(last) <= 0) {
+                throw new IllegalArgumentException("Out of order: " + key + " after " + last);
+            }
+            int prefix = 0;
+            if (last != null) {
+                while (prefix < key.length() && prefix < last.length()
+                        && key.charAt(prefix) == last.charAt(prefix)) {
+                    prefix++;
+                }
+                compileTail(prefix);
+            }
+            for (int i = prefix + 1; i <= key.length(); i++) {
+                if (frontier.size() <= i) {
+                    frontier.add(new PendingState());
+                }
+                frontier.get(i - 1).addArc(key.charAt(i - 1));
+            }
+            frontier.get(key.length()).isFinal = true;
+
+            /* Along the shared prefix, keep on each arc only what its strings have in
+             * common, and push the rest on to the next state. */
+            for (int i = 1; i <= prefix; i++) {
+                PendingState state = frontier.get(i - 1);
+                int arc = state.arcCount - 1;
+                int common = Math.min(state.outputs[arc], output);
+                int rest = state.outputs[arc] - common;
+                state.outputs[arc] = common;
+                output -= common;
+                if (rest > 0) {
+                    PendingState next = frontier.get(i);
+                    for (int a = 0; a < next.arcCount; a++) {
+                        next.outputs[a] += rest;
+                    }
+                    if (next.isFinal) {
+                        next.finalOutput += rest;
+                    }
+                }
+            }
+            PendingState state = frontier.get(prefix);
+            if (prefix < key.length()) {
+                state.outputs[state.arcCount - 1] = output;
+            } else {
+                state.finalOutput = output;
+            }
+            last = key;
+        }
+
+        /**
+         * Compiles the states of the last string deeper than depth.
+         */
+        private void compileTail(int depth) {
+            for (int i = last.length(); i > depth; i--) {
+                PendingState parent = frontier.get(i - 1);
+                parent.targets[parent.arcCount - 1] = compile(frontier.get(i));
+                frontier.get(i).clear();
+            }
+        }
+
+        /**
+         * Writes a state, or finds an equal state written before and takes the bytes back.
+         * @return the address of the state.
+         */
+        private int compile(PendingState state) {
+            int address = size;
+            ensureCapacity((state.isFinal ? 7 : 3) + state.arcCount * ARC_SIZE);
+            out[size++] = (byte) (state.isFinal ? FINAL : 0);
+            if (state.isFinal) {
+                putInt(state.finalOutput);
+            }
+            out[size++] = (byte) (state.arcCount >>> 8);
+            out[size++] = (byte) state.arcCount;
+            for (int a = 0; a < state.arcCount; a++) {
+                out[size++] = (byte) (state.labels[a] >>> 8);
+                out[size++] = (byte) state.labels[a];
+                putInt(state.outputs[a]);
+                putInt(state.targets[a]);
+            }
+            int length = size - address;
+            int mask = registry.length - 1;
+            int slot = hash(address, size) & mask;
+            while (registry[slot] >= 0) {
+                int other = registry[slot];
+                if (Arrays.equals(out, other, other + length, out, address, size)) {
+                    size = address;
+                    return other;
+                }
+                slot = (slot + 1) & mask;
+            }
+            registry[slot] = address;
+            if (++registered * 2 > registry.length) {
+                rehash();
+            }
+            return address;
+        }
+
+        private void putInt(int value) {
+            out[size++] = (byte) (value >>> 24);
+            out[size++] = (byte) (value >>> 16);
+            out[size++] = (byte) (value >>> 8);
+            out[size++] = (byte) value;
+        }
+
+        private void ensureCapacity(int more) {
+            if (size + more > out.length) {
+                out = Arrays.copyOf(out, Math.max(2 * out.length, size + more));
+            }
+        }
+
+        /**
+         * Doubles the registry, hashing every state in it again.
+         */
+        private void rehash() {
+            int[] old = registry;
+            registry = newTable(2 * old.length);
+            int mask = registry.length - 1;
+            for (int address : old) {
+                if (address < 0) {
+                    continue;
+                }
+                int slot = hash(address, address + stateLength(address)) & mask;
+                while (registry[slot] >= 0) {
+                    slot = (slot + 1) & mask;
+                }
+                registry[slot] = address;
+            }
+        }
+
+        /**
+         * Hashes the bytes start to end - 1 of the states, mixing the bits well enough for the
+         * low ones to index the registry.
+         */
+        private int hash(int start, int end) {
+            int hash = 0;
+            for (int b = start; b < end; b++) {
+                hash = 31 * hash + out[b];
+            }
+            hash *= 0x9E3779B9;
+            return hash ^ hash >>> 16;
+        }
+
+        private int stateLength(int address) {
+            int header = (out[address] & FINAL) != 0 ? 7 : 3;
+            int arcs = (out[address + header - 2] & 0xFF) << 8 | out[address + header - 1] & 0xFF;
+            return header + arcs * ARC_SIZE;
+        }
+
+        private static int[] newTable(int length) {
+            int[] table = new int[length];
+            Arrays.fill(table, -1);
+            return table;
+        }
+
+        /**
+         * Compiles the remaining states, after the last string is added.
+         * @return the address of the start state.
+         */
+        public int finish() {
+            if (last != null) {
+                compileTail(0);
+            }
+            return compile(frontier.get(0));
+        }
+
+        /** Gets the compiled states, after finish. */
+        public byte[] toByteArray() {
+            return Arrays.copyOf(out, size);
+        }
+    }
+
+    /** A state not compiled yet, with its arcs in primitive arrays. */
+    private static class PendingState {
+        boolean isFinal;
+        int finalOutput;
+        int arcCount;
+        char[] labels = new char[4];
+        int[] outputs = new int[4];
+        int[] targets = new int[4];
+
+        void addArc(char label) {
+            if (arcCount == labels.length) {
+                labels = Arrays.copyOf(labels, 2 * arcCount);
+                outputs = Arrays.copyOf(outputs, 2 * arcCount);
+                targets = Arrays.copyOf(targets, 2 * arcCount);
+            }
+            labels[arcCount] = label;
+            outputs[arcCount] = 0;
+            targets[arcCount] = 0;
+            arcCount++;
+        }
+
+        void clear() {
+            isFinal = false;
+            finalOutput = 0;
+            arcCount = 0;
+        }
+    }
+}
@@ -18,17 +18,20 @@ public class GraphDB {
      * Example constructor shows how to create and start an XML parser.
      * @param dbPath Path to the XML file to be parsed.
      */
-    Point end;
     HashMap<Long, GraphNode> NodeDB;
     HashMap<Point, Long> findID;
     HashMap<Long, ArrayList<Connection>> con;
-    HashMap<String, Point> nameToPoint;
+    /* The ids of the nodes carrying each name. */
+    HashMap<String, ArrayList<Long>> nameToIds;
+    /* Where every named node is, kept after clean() drops the nodes that are not on roads. */
+    HashMap<Long, Point> namedPoints;
 
     public GraphDB(String dbPath) {
         NodeDB = new HashMap<>();
         findID = new HashMap<>();
         con = new HashMap<>();
-        nameToPoint = new HashMap<>();
+        nameToIds = new HashMap<>();
+        namedPoints = new HashMap<>();
         try {
             File inputFile = new File(dbPath);
             SAXParserFactory factory = SAXParserFactory.newInstance();
@@ -42,12 +45,13 @@ public class GraphDB {
     }
 
     /**
-     * Helper to process strings into their "cleaned" form, ignoring punctuation and capitalization.
+     * Helper to process strings into their "cleaned" form, ignoring punctuation, accents and
+     * capitalization, as TextNormalizer does for search.
      * @param s Input string.
      * @return Cleaned string.
      */
     static String cleanString(String s) {
-        return s.replaceAll("[^a-zA-Z ]", "").toLowerCase();
+        return TextNormalizer.clean(s);
     }
 
     /**
@@ -67,66 +71,5 @@ public class GraphDB {
             NodeDB.remove(x);
         }
     }
-    public ArrayList<Long> shortestPath(GraphNode startVertex, GraphNode endVertex) {
-
-
-        end = endVertex.getP();
-        Queue<GraphNode> fringe = new PriorityQueue<>(100, new NodeComparator());
-
-        ArrayList<Long> rtn = new ArrayList<>();
-        HashSet<Long> done = new HashSet<>();
-        HashMap<Long, Double> d = new HashMap<>();
-        HashMap<Long, Long> from = new HashMap<>();
-        fringe.add(startVertex);
-        d.put(startVertex.getId(), 0.0);
-        startVertex.setDistance(0.0);
-        while (!fringe.isEmpty()) {
-            GraphNode value = fringe.poll();
-            if (done.contains(value.getId())) continue;
-            if (value.getId() == endVertex.getId()) {
-                Long p = value.getId();
-                while (!startVertex.getId().equals(p)) {
-                    rtn.add(0, p);
-                    p = from.get(p);
-                }
-                rtn.add(0, p);
-
-                return rtn;
-            }
-            done.add(value.getId());
-            for (Connection x : con.get(value.getId())) {
-                Double distance = x.getDistance() + value.distance();
-                if (!d.containsKey(x.getIdTo()) || (!done.contains(x.getIdTo())
-                        && distance < d.get(x.getIdTo()))) {
-                    NodeDB.get(x.getIdTo()).setDistance(distance);
-                    fringe.add(NodeDB.get(x.getIdTo()));
-                    d.put(x.getIdTo(), distance);
-                    from.put(x.getIdTo(), x.getIdFrom());
-                }
-            }
-        }
-        return rtn;
-    }
-
-    public double h(Point curr) {
-        return calculatedistance(curr, end);
-
-    }
-    static double calculatedistance(Point from, Point to) {
-        return Math.sqrt((from.x - to.x) * (from.x - to.x) + (from.y - to.y) * (from.y - to.y));
-    }
-    public class NodeComparator implements Comparator<GraphNode> {
-        @Override
-        public int compare(GraphNode o1, GraphNode o2) {
-            if (o1.distance() + h(o1.getP()) < o2.distance() + h(o2.getP())) {
-                return -1;
-            } else if (o1.distance() + h(o1.getP()) > o2.distance() + h(o2.getP())) {
-
-                return 1;
-            } else {
-                return 0;
-            }
-        }
-    }
 }
 
@@ -11,12 +11,10 @@ public class GraphNode {
     private Map tag;
     private String name;
     private boolean used;
-    private double distance;
     public GraphNode(Long id, Point p) {
         this.id = id;
         this.p = p;
         tag = new HashMap();
-        distance = 0;
     }
     public boolean used() {
         return used;
@@ -28,12 +26,6 @@ public class GraphNode {
     public void setUsed(boolean used) {
         this.used = used;
     }
-    public double distance() {
-        return distance;
-    }
-    public void setDistance(double distance) {
-        this.distance = distance;
-    }
     public Long getId() {
         return id;
     }
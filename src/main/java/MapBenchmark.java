@@ -0,0 +1,429 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import spark.HaltException;
+import spark.Route;
+
+/**
+ * Offline benchmarks for the map server, run from the same directory as the server so that
+ * the tiles and the OSM file can be found. Pass the names of the benchmarks to run, or nothing
+ * to run them all:
+ * <pre>java MapBenchmark encode exact vector fuzzy index coalesce isolation</pre>
+ */
+public class MapBenchmark {
+    /** Number of timed repetitions of every measurement. */
+    private static final int ROUNDS = 20;
+    /** Number of clients asking for the same raster at once in the coalescing benchmark. */
+    private static final int BURST_CLIENTS = 8;
+    /** The longest a search may take while tile requests flood the server. */
+    private static final long ISOLATED_SEARCH_MILLIS = 1000;
+
+    /**
+     * Typical viewports, as {ullat, ullon, lrlat, lrlon, w, h}: the map.js starting view and
+     * the same view zoomed in a few times.
+     */
+    private static final double[][] VIEWPORTS = {
+        {37.88, -122.27625, 37.83, -122.22, 1280, 800},
+        {37.87, -122.265, 37.845, -122.2375, 1280, 800},
+        {37.865, -122.26, 37.8525, -122.24625, 1280, 800},
+        {37.8625, -122.2575, 37.85625, -122.250625, 1920, 1080},
+    };
+
+    public static void main(String[] args) throws IOException {
+        List<String> run = Arrays.asList(args);
+        MapServer.initialize();
+        if (run.isEmpty() || run.contains("encode")) {
+            benchmarkEncoders();
+        }
+        if (run.isEmpty() || run.contains("exact")) {
+            benchmarkExactViewport();
+        }
+        if (run.isEmpty() || run.contains("vector")) {
+            benchmarkVectorTiles();
+        }
+        if (run.isEmpty() || run.contains("fuzzy")) {
+            benchmarkFuzzySearch();
+        }
+        if (run.isEmpty() || run.contains("index")) {
+            benchmarkSearchIndexBuild();
+        }
+        if (run.isEmpty() || run.contains("coalesce")) {
+            benchmarkRasterCoalescing();
+        }
+        if (run.isEmpty() || run.contains("isolation")) {
+            checkEndpointIsolation();
+        }
+    }
+
+    /**
+     * Reports the pixels, bytes per response and encode CPU time of whole-tile rasters against
+     * rasters resampled to exactly the viewport, for every viewport.
+     */
+    static void benchmarkExactViewport() throws IOException {
+        System.out.println("== Whole tiles vs exact viewport, jpg at 0.85 ==");
+        System.out.printf("%-11s %11s %11s %10s %10s %9s %9s%n", "viewport", "tile px",
+                "exact px", "tile bytes", "exact B", "tile ms", "exact ms");
+        for (double[] viewport : VIEWPORTS) {
+            Map<String, Double> params = toParams(viewport);
+            Map<String, Object> tileParams = new HashMap<>();
+            String[][] names = MapServer.getRasterTiles(params, tileParams);
+            BufferedImage tiled = MapServer.drawImages(names);
+            BufferedImage exact = MapServer.resampleToViewport(names, new HashMap<>(tileParams),
+                    params);
+            long[] tiledCost = encodeCost(tiled, RasterEncoder.Format.JPG, 0.85F);
+            long[] exactCost = encodeCost(exact, RasterEncoder.Format.JPG, 0.85F);
+            System.out.printf("%-11s %11d %11d %10d %10d %9.2f %9.2f%n",
+                    (int) viewport[4] + "x" + (int) viewport[5],
+                    (long) tiled.getWidth() * tiled.getHeight(),
+                    (long) exact.getWidth() * exact.getHeight(), tiledCost[0], exactCost[0],
+                    tiledCost[1] / 1e6, exactCost[1] / 1e6);
+        }
+    }
+
+    /**
+     * Reports, for every viewport, the bytes and time of its jpg raster against those of the
+     * road vector tiles of the same tiles, both generated from scratch, and the throughput of
+     * both.
+     */
+    static void benchmarkVectorTiles() throws IOException {
+        System.out.println("== JPEG raster vs road vector tiles, " + MapServer.roads.size()
+                + " road segments ==");
+        System.out.printf("%-11s %6s %11s %10s %10s %9s %9s%n", "viewport", "tiles",
+                "raster B", "vector B", "raster ms", "vector ms", "speedup");
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        long rasterNanos = 0;
+        long vectorNanos = 0;
+        for (double[] viewport : VIEWPORTS) {
+            Map<String, Double> params = toParams(viewport);
+            String[][] names = MapServer.getRasterTiles(params, new HashMap<>());
+            TileRange range = TileRange.of(names);
+            long[] raster = new long[2];
+            long[] vector = new long[2];
+            /* The first round warms up. */
+            for (int round = 0; round <= ROUNDS; round++) {
+                os.reset();
+                long start = System.nanoTime();
+                RasterEncoder.encode(MapServer.drawImages(names), RasterEncoder.Format.JPG,
+                        0.85F, os);
+                long rasterTime = System.nanoTime() - start;
+                start = System.nanoTime();
+                long bytes = 0;
+                for (int y = range.minY; y <= range.maxY; y++) {
+                    for (int x = range.minX; x <= range.maxX; x++) {
+                        bytes += VectorTiles.encode(MapServer.roads, range.depth, x, y).length;
+                    }
+                }
+                long vectorTime = System.nanoTime() - start;
+                if (round > 0) {
+                    raster[0] = os.size();
+                    raster[1] += rasterTime;
+                    vector[0] = bytes;
+                    vector[1] += vectorTime;
+                }
+            }
+            rasterNanos += raster[1];
+            vectorNanos += vector[1];
+            System.out.printf("%-11s %6d %11d %10d %10.2f %9.2f %8.1fx%n",
+                    (int) viewport[4] + "x" + (int) viewport[5], range.width() * range.height(),
+                    raster[0], vector[0], raster[1] / 1e6 / ROUNDS, vector[1] / 1e6 / ROUNDS,
+                    (double) raster[1] / vector[1]);
+        }
+        double viewports = (double) VIEWPORTS.length * ROUNDS;
+        System.out.printf("Throughput: %.1f rasters/s, %.1f vector viewports/s uncached%n",
+                viewports / (rasterNanos / 1e9), viewports / (vectorNanos / 1e9));
+    }
+
+    /**
+     * Reports the latency of autocomplete over all location names, for exact prefixes and for
+     * the same prefixes with one typo searched with up to one and two edits, and how often the
+     * name a prefix was cut from is among the results.
+     */
+    static void benchmarkFuzzySearch() {
+        PlaceIndex places = MapServer.places;
+        SearchIndex index = MapServer.search;
+        int limit = 10;
+        int step = Math.max(1, places.size() / 500);
+        List<String> prefixes = new ArrayList<>();
+        List<String> typos = new ArrayList<>();
+        List<Integer> sources = new ArrayList<>();
+        for (int i = 0; i < places.size(); i += step) {
+            String word = TextNormalizer.clean(places.name(i));
+            String prefix = word.substring(0, Math.min(word.length(), 3 + i % 6));
+            /* Replace the middle letter with the next one in the alphabet. */
+            int middle = prefix.length() / 2;
+            char letter = prefix.charAt(middle);
+            char typo = letter < 'a' || letter > 'z' ? 'a' : (char) ('a' + (letter - 'a' + 1) % 26);
+            prefixes.add(prefix);
+            typos.add(prefix.substring(0, middle) + typo + prefix.substring(middle + 1));
+            sources.add(i);
+        }
+        System.out.println("== Autocomplete over " + places.size() + " names, " + prefixes.size()
+                + " prefixes, limit " + limit + " ==");
+        System.out.printf("%-22s %12s %10s%n", "search", "us/query", "found");
+        for (int maxEdits = -1; maxEdits <= 2; maxEdits++) {
+            List<String> queries = maxEdits < 0 ? prefixes : typos;
+            long nanos = 0;
+            int found = 0;
+            /* The first round warms up. */
+            for (int round = 0; round <= ROUNDS; round++) {
+                long start = System.nanoTime();
+                found = 0;
+                for (int q = 0; q < queries.size(); q++) {
+                    int[] results = maxEdits <= 0
+                            ? index.getTopCompletions(queries.get(q), limit)
+                            : index.getFuzzyCompletions(queries.get(q), maxEdits, limit);
+                    for (int place : results) {
+                        if (place == sources.get(q)) {
+                            found++;
+                        }
+                    }
+                }
+                if (round > 0) {
+                    nanos += System.nanoTime() - start;
+                }
+            }
+            String search = maxEdits < 0 ? "exact, no typo" : maxEdits == 0 ? "exact, typo"
+                    : "fuzzy " + maxEdits + ", typo";
+            System.out.printf("%-22s %12.2f %9.1f%%%n", search,
+                    nanos / 1e3 / ROUNDS / queries.size(), 100.0 * found / queries.size());
+        }
+    }
+
+    /**
+     * Reports the time SearchIndexBuilder takes to build the search index of all location
+     * names, and its size.
+     */
+    static void benchmarkSearchIndexBuild() {
+        GraphDB g = new GraphDB(MapServer.OSM_DB_PATH);
+        PlaceIndex.Builder places = new PlaceIndex.Builder(g, TextNormalizer::clean);
+        long nanos = 0;
+        int bytes = 0;
+        /* The first round warms up. */
+        for (int round = 0; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            bytes = SearchIndex.build(places, 0, 0).length;
+            if (round > 0) {
+                nanos += System.nanoTime() - start;
+            }
+        }
+        System.out.println("== Search index build over " + places.size() + " names ==");
+        System.out.printf("%.2f ms, %d bytes%n", nanos / 1e6 / ROUNDS, bytes);
+    }
+
+    /**
+     * Replays a burst of identical raster requests: BURST_CLIENTS clients ask for every
+     * viewport at the same moment, as clients sharing a view or retrying do. Reports the CPU
+     * and wall time of the burst when every request renders its own raster, against requests
+     * coalesced by a SingleFlight as the server does.
+     */
+    static void benchmarkRasterCoalescing() throws IOException {
+        System.out.println("== Burst of " + BURST_CLIENTS + " identical raster requests per "
+                + "viewport, " + VIEWPORTS.length + " viewports ==");
+        System.out.printf("%-10s %10s %10s %8s%n", "requests", "cpu ms", "wall ms", "renders");
+        /* The first burst warms up. */
+        replayBurst(null);
+        long[] alone = replayBurst(null);
+        long[] coalesced = replayBurst(new SingleFlight<>());
+        System.out.printf("%-10s %10.1f %10.1f %8d%n", "alone", alone[0] / 1e6, alone[1] / 1e6,
+                alone[2]);
+        System.out.printf("%-10s %10.1f %10.1f %8d%n", "coalesced", coalesced[0] / 1e6,
+                coalesced[1] / 1e6, coalesced[2]);
+        System.out.printf("CPU saved: %.1f%%%n", 100.0 * (alone[0] - coalesced[0]) / alone[0]);
+    }
+
+    /**
+     * Runs one burst of raster requests, through flights if not null.
+     * @return the total CPU time of the clients and the wall time in nanoseconds, and the
+     * number of rasters rendered.
+     */
+    private static long[] replayBurst(SingleFlight<MapServer.EncodedRaster> flights)
+            throws IOException {
+        CyclicBarrier together = new CyclicBarrier(BURST_CLIENTS);
+        AtomicLong cpuNanos = new AtomicLong();
+        AtomicLong renders = new AtomicLong();
+        ExecutorService clients = Executors.newFixedThreadPool(BURST_CLIENTS);
+        List<Future<?>> done = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int c = 0; c < BURST_CLIENTS; c++) {
+            done.add(clients.submit(() -> {
+                long cpuStart = RasterEncoder.threadCpuNanos();
+                for (double[] viewport : VIEWPORTS) {
+                    Map<String, Object> params = new HashMap<>();
+                    String[][] names = MapServer.getRasterTiles(toParams(viewport), params);
+                    SingleFlight.Loader<MapServer.EncodedRaster> render = () -> {
+                        renders.incrementAndGet();
+                        return MapServer.encodeRaster(names, params, null, null,
+                                RasterEncoder.Format.JPG, 0.85F);
+                    };
+                    together.await();
+                    if (flights == null) {
+                        render.load();
+                    } else {
+                        flights.get(TileRange.of(names).toString(), render);
+                    }
+                }
+                cpuNanos.addAndGet(RasterEncoder.threadCpuNanos() - cpuStart);
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> client : done) {
+                client.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        } finally {
+            clients.shutdown();
+        }
+        return new long[]{cpuNanos.get(), System.nanoTime() - start, renders.get()};
+    }
+
+    /**
+     * Floods the tile endpoints with requests that do not finish, twice as many as the server
+     * has request threads, on as many request threads as the server runs with, and checks
+     * that a search still answers while the tile requests hold their threads.
+     * @throws IllegalStateException if the search is not answered in ISOLATED_SEARCH_MILLIS.
+     */
+    static void checkEndpointIsolation() throws IOException {
+        int flood = 2 * MapServer.requestThreads();
+        System.out.println("== Search during a flood of " + flood + " tile requests, "
+                + MapServer.requestThreads() + " request threads ==");
+        ExecutorService requestThreads = Executors.newFixedThreadPool(MapServer.requestThreads());
+        CountDownLatch stuck = new CountDownLatch(1);
+        Route tile = MapServer.tileExecutor.wrap((req, res) ->
+                MapServer.tileExecutor.call(res, () -> {
+                    stuck.await();
+                    return "";
+                }));
+        Route search = MapServer.searchExecutor.wrap((req, res) ->
+                MapServer.searchExecutor.call(res, () -> MapServer.getLocationsByPrefix("s")));
+        List<Future<Object>> tiles = new ArrayList<>();
+        try {
+            for (int i = 0; i < flood; i++) {
+                tiles.add(requestThreads.submit(() -> handle(tile)));
+            }
+            /* Let the flood take every request thread it can. */
+            long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            while (MapServer.tileExecutor.active() + MapServer.tileExecutor.queued()
+                    < MapServer.tileExecutor.capacity() && System.nanoTime() < until) {
+                Thread.sleep(10);
+            }
+            long start = System.nanoTime();
+            Object found = requestThreads.submit(() -> handle(search))
+                    .get(ISOLATED_SEARCH_MILLIS, TimeUnit.MILLISECONDS);
+            System.out.printf("search answered in %.1f ms: %s%n",
+                    (System.nanoTime() - start) / 1e6, found);
+            stuck.countDown();
+            int refused = 0;
+            for (Future<Object> answer : tiles) {
+                if (answer.get() instanceof HaltException) {
+                    refused++;
+                }
+            }
+            System.out.println("tile requests refused: " + refused + " of " + flood);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("A flood of tile requests starved search.");
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        } finally {
+            stuck.countDown();
+            requestThreads.shutdownNow();
+        }
+    }
+
+    /**
+     * Handles a request with route, as a request thread does.
+     * @return what route returned, or the HaltException it was answered with.
+     */
+    private static Object handle(Route route) throws Exception {
+        try {
+            return route.handle(new spark.Request() { }, new spark.Response() {
+                @Override
+                public void header(String header, String value) {
+                }
+            });
+        } catch (HaltException e) {
+            return e;
+        }
+    }
+
+    /**
+     * Encodes im ROUNDS times after a warm up.
+     * @return the encoded bytes and the average encode CPU time in nanoseconds.
+     */
+    private static long[] encodeCost(BufferedImage im, RasterEncoder.Format format,
+            float quality) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        RasterEncoder.encode(im, format, quality, os);
+        long cpuNanos = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            os.reset();
+            long start = RasterEncoder.threadCpuNanos();
+            RasterEncoder.encode(im, format, quality, os);
+            cpuNanos += RasterEncoder.threadCpuNanos() - start;
+        }
+        return new long[]{os.size(), cpuNanos / ROUNDS};
+    }
+
+    /**
+     * Reports the bytes per response and encode CPU time of every raster encoding option.
+     */
+    static void benchmarkEncoders() throws IOException {
+        System.out.println("== Raster encoding, averaged over " + VIEWPORTS.length
+                + " viewports ==");
+        System.out.printf("%-10s %8s %12s %14s%n", "format", "quality", "bytes", "cpu ms");
+        BufferedImage[] rasters = new BufferedImage[VIEWPORTS.length];
+        for (int i = 0; i < VIEWPORTS.length; i++) {
+            rasters[i] = MapServer.getMapRaster(toParams(VIEWPORTS[i]), new HashMap<>());
+        }
+        float[] jpgQualities = {1.0F, 0.9F, 0.85F, 0.75F, 0.5F};
+        for (float quality : jpgQualities) {
+            reportEncoder(rasters, RasterEncoder.Format.JPG, quality);
+        }
+        reportEncoder(rasters, RasterEncoder.Format.PNG, 1.0F);
+        if (RasterEncoder.isAvailable(RasterEncoder.Format.WEBP)) {
+            reportEncoder(rasters, RasterEncoder.Format.WEBP, 0.85F);
+        } else {
+            System.out.printf("%-10s %8s%n", "webp", "no encoder installed");
+        }
+    }
+
+    private static void reportEncoder(BufferedImage[] rasters, RasterEncoder.Format format,
+            float quality) throws IOException {
+        long bytes = 0;
+        long cpuNanos = 0;
+        for (BufferedImage raster : rasters) {
+            long[] cost = encodeCost(raster, format, quality);
+            bytes += cost[0];
+            cpuNanos += cost[1];
+        }
+        System.out.printf("%-10s %8.2f %12d %14.2f%n", format.name, quality,
+                bytes / rasters.length, cpuNanos / 1e6 / rasters.length);
+    }
+
+    /**
+     * Turns a row of VIEWPORTS into raster request parameters.
+     */
+    static Map<String, Double> toParams(double[] viewport) {
+        Map<String, Double> params = new HashMap<>();
+        for (int i = 0; i < viewport.length; i++) {
+            params.put(MapServer.REQUIRED_RASTER_REQUEST_PARAM[i], viewport[i]);
+        }
+        return params;
+    }
+}
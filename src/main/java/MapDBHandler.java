@@ -32,6 +32,10 @@ public class MapDBHandler extends DefaultHandler {
     private final GraphDB g;
     private Long lastput;
     private LinkedList<Long> later;
+    /* Whether the way being parsed is a road, and its name, known only once its tags are
+     * read. */
+    private boolean wayIsRoad;
+    private String wayName;
     public MapDBHandler(GraphDB g) {
         this.g = g;
     }
@@ -65,6 +69,8 @@ public class MapDBHandler extends DefaultHandler {
         } else if (qName.equals("way")) {
             activeState = "way";
             later = new LinkedList<>();
+            wayIsRoad = false;
+            wayName = null;
             //System.out.println("Beginning a way...");
         } else if (activeState.equals("way") && qName.equals("nd")) {
             later.add(Long.valueOf(attributes.getValue("ref")));
@@ -72,40 +78,16 @@ public class MapDBHandler extends DefaultHandler {
                 .equals("highway")) {
             String k = attributes.getValue("k");
             String v = attributes.getValue("v");
-            if (ALLOWED_HIGHWAY_TYPES.contains(v)) {
-                for (int i = 0; i < later.size() - 1; i++) {
-                    g.NodeDB.get(later.get(i)).setUsed(true);
-                    g.NodeDB.get(later.get(i + 1)).setUsed(true);
-                    if (g.con.get(later.get(i)) != null) {
-                        g.con.get(later.get(i))
-                                .add(new Connection(g.NodeDB.get(later.get(i)).getP(),
-                                        g.NodeDB.get(later.get(i + 1)).getP(), later.get(i),
-                                later.get(i + 1)));
-                    } else {
-                        ArrayList a = new ArrayList();
-                        a.add(new Connection(g.NodeDB.get(later.get(i)).getP(),
-                                g.NodeDB.get(later.get(i + 1)).getP(),
-                                later.get(i), later.get(i + 1)));
-                        g.con.put(later.get(i), a);
-                    }
-                    if (g.con.get(later.get(i + 1)) != null) {
-                        g.con.get(later.get(i + 1))
-                                .add(new Connection(g.NodeDB.get(later.get(i + 1)).getP(),
-                                        g.NodeDB.get(later.get(i))
-                                        .getP(), later.get(i + 1), later.get(i)));
-                    } else {
-                        ArrayList a = new ArrayList();
-                        a.add(new Connection(g.NodeDB.get(later.get(i + 1)).getP(),
-                                g.NodeDB.get(later.get(i)).getP(), later.get(i + 1),
-                                later.get(i)));
-                        g.con.put(later.get(i + 1), a);
-                    }
-                }
-            }
+            wayIsRoad = ALLOWED_HIGHWAY_TYPES.contains(v);
             //System.out.println("Tag with k=" + k + ", v=" + v + ".");
+        } else if (activeState.equals("way") && qName.equals("tag") && attributes.getValue("k")
+                .equals("name")) {
+            wayName = attributes.getValue("v");
         } else if (activeState.equals("node") && qName.equals("tag") && attributes.getValue("k")
                 .equals("name")) {
-            g.nameToPoint.put(attributes.getValue("v"), g.NodeDB.get(lastput).getP());
+            g.nameToIds.computeIfAbsent(attributes.getValue("v"), v -> new ArrayList<>())
+                    .add(lastput);
+            g.namedPoints.put(lastput, g.NodeDB.get(lastput).getP());
             g.NodeDB.get(lastput).setName(attributes.getValue("v"));
             g.NodeDB.get(lastput).pushTag("name", attributes.getValue("v"));
         }
@@ -124,7 +106,43 @@ public class MapDBHandler extends DefaultHandler {
      */
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (qName.equals("way") && wayIsRoad) {
+            addRoad();
+        }
+    }
 
+    /**
+     * Connects the consecutive nodes of the way just parsed, both ways, as a road.
+     */
+    private void addRoad() {
+        for (int i = 0; i < later.size() - 1; i++) {
+            g.NodeDB.get(later.get(i)).setUsed(true);
+            g.NodeDB.get(later.get(i + 1)).setUsed(true);
+            if (g.con.get(later.get(i)) != null) {
+                g.con.get(later.get(i))
+                        .add(new Connection(g.NodeDB.get(later.get(i)).getP(),
+                                g.NodeDB.get(later.get(i + 1)).getP(), later.get(i),
+                        later.get(i + 1), wayName));
+            } else {
+                ArrayList a = new ArrayList();
+                a.add(new Connection(g.NodeDB.get(later.get(i)).getP(),
+                        g.NodeDB.get(later.get(i + 1)).getP(),
+                        later.get(i), later.get(i + 1), wayName));
+                g.con.put(later.get(i), a);
+            }
+            if (g.con.get(later.get(i + 1)) != null) {
+                g.con.get(later.get(i + 1))
+                        .add(new Connection(g.NodeDB.get(later.get(i + 1)).getP(),
+                                g.NodeDB.get(later.get(i))
+                                .getP(), later.get(i + 1), later.get(i), wayName));
+            } else {
+                ArrayList a = new ArrayList();
+                a.add(new Connection(g.NodeDB.get(later.get(i + 1)).getP(),
+                        g.NodeDB.get(later.get(i)).getP(), later.get(i + 1),
+                        later.get(i), wayName));
+                g.con.put(later.get(i + 1), a);
+            }
+        }
     }
 
 }
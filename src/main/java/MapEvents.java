@@ -0,0 +1,72 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events of the hot paths of the server: route searches, tile reads and
+ * raster encodes. Each event is timed and tells what was worked on, so a recording shows which
+ * requests and tiles make up the tail latency, without logging on the hot path. An event that
+ * is not enabled costs next to nothing. To record them:
+ * <pre>java -XX:StartFlightRecording=filename=bearmaps.jfr MapServer</pre>
+ */
+public class MapEvents {
+
+    /** A shortest route search. */
+    @Name("bearmaps.RouteSearch")
+    @Label("Route Search")
+    @Category({"BearMaps", "Routing"})
+    @Description("An A* search for the shortest route between two road nodes")
+    public static class RouteSearch extends Event {
+        @Label("Start Node")
+        long startId;
+        @Label("End Node")
+        long endId;
+        @Label("Nodes Settled")
+        int settled;
+        @Label("Route Nodes")
+        @Description("The number of nodes on the route, 0 if there is none")
+        int routeNodes;
+        @Label("Distance")
+        @Description("The length of the route in degrees, -1 if there is none")
+        double distance;
+    }
+
+    /** A tile image looked up to draw a raster. */
+    @Name("bearmaps.TileRead")
+    @Label("Tile Read")
+    @Category({"BearMaps", "Tiles"})
+    @Description("A tile image looked up, decoded from disk the first time")
+    public static class TileRead extends Event {
+        @Label("Tile")
+        String tile;
+        @Label("Source")
+        @Description("memory if already decoded, prefetch if decoded ahead of the request, disk if"
+                + " read, alias if shared with a duplicate")
+        String source;
+        @Label("File Size")
+        @DataAmount
+        long bytes;
+    }
+
+    /** A raster encoded as an image. */
+    @Name("bearmaps.RasterEncode")
+    @Label("Raster Encode")
+    @Category({"BearMaps", "Rasters"})
+    @Description("A raster or raster strip encoded as jpg, png or webp")
+    public static class RasterEncode extends Event {
+        @Label("Format")
+        String format;
+        @Label("Quality")
+        float quality;
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+        @Label("Encoded Size")
+        @DataAmount
+        long bytes;
+    }
+}
@@ -1,20 +1,25 @@
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 
 /* Maven is used to pull in these dependencies. */
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 
 
 import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 
 import static java.lang.StrictMath.sqrt;
@@ -28,7 +33,6 @@ import static spark.Spark.*;
  */
 public class MapServer {
 
-    static HashMap<Point, String> pointToName;
     //The mapping of Point to ImageName
     static HashMap<Point, String> imageNameMap;
     //The mapping of ImageName to Image File
@@ -38,10 +42,49 @@ public class MapServer {
     //quadtree
     //The mapping of name to coordinates
     static QuadTree tree = new QuadTree();
-    static Trie trie;
-
-    //map from cleaned strings to full strings
-    static HashMap<String, String> cleanedToOriginal;
+    //the tile images, cached on the quadtree nodes
+    static TileStore tiles;
+    //encoded rasters without routes, by tile range and encoding
+    static ByteLruCache rasterCache;
+    //raster renders in progress, so that concurrent duplicates wait for one of them
+    static SingleFlight<EncodedRaster> rasterFlights = new SingleFlight<>();
+    //reads the tiles clients are likely to ask for next
+    static TilePrefetcher prefetcher;
+    //the road segments, indexed by where they are
+    static EdgeGrid roads;
+    //road vector tiles generated from the road segments
+    static VectorTiles vectorTiles;
+    //the named places and where they are
+    static PlaceIndex places;
+    //the place names and their words, for search
+    static SearchIndex search;
+    //serialized autocomplete responses, by normalized term
+    static SearchCache searchCache;
+    //the nearest place and road to a location
+    static ReverseGeocoder geocoder;
+    //the roads packed for routing
+    static RoadGraph roadGraph;
+    //the threads and admission limits of each group of endpoints
+    static EndpointExecutor rasterExecutor;
+    static EndpointExecutor tileExecutor;
+    static EndpointExecutor searchExecutor;
+    static EndpointExecutor reverseExecutor;
+    static EndpointExecutor routeExecutor;
+    static EndpointExecutor batchExecutor;
+    //the metrics served on /metrics
+    static Metrics metrics;
+    //the time taken by every stage of raster and route requests
+    static LatencyHistogram rasterTilesStage;
+    static LatencyHistogram drawImagesStage;
+    static LatencyHistogram resampleStage;
+    static LatencyHistogram drawRouteStage;
+    static LatencyHistogram encodeStage;
+    static LatencyHistogram serializeStage;
+    static LatencyHistogram snapStage;
+    static LatencyHistogram routeSearchStage;
+    //the number of route searches and the nodes they settled
+    static LongAdder routeSearches;
+    static LongAdder nodesSettled;
 
     /**
      * The root upper left/lower right longitudes and latitudes represent the bounding box of
@@ -54,17 +97,97 @@ public class MapServer {
     public static final int TILE_SIZE = 256;
     /** HTTP failed response. */
     private static final int HALT_RESPONSE = 403;
+    /** HTTP response for a tile that does not exist. */
+    private static final int NOT_FOUND_RESPONSE = 404;
+    /** HTTP response for a tile the client already has. */
+    private static final int NOT_MODIFIED_RESPONSE = 304;
+    /**
+     * The most bytes of encoded rasters to cache, 64MB unless the bearmaps.rasterCacheBytes
+     * system property says otherwise.
+     */
+    private static final long RASTER_CACHE_BYTES =
+            Long.getLong("bearmaps.rasterCacheBytes", 64L << 20);
+    /**
+     * The number of tile prefetch threads and the most tiles waiting to be prefetched, set by
+     * the bearmaps.prefetchThreads and bearmaps.prefetchQueue system properties.
+     */
+    private static final int PREFETCH_THREADS = Integer.getInteger("bearmaps.prefetchThreads", 1);
+    private static final int PREFETCH_QUEUE_LIMIT =
+            Integer.getInteger("bearmaps.prefetchQueue", 256);
+    /**
+     * The most bytes of prefetched tile images no request has used yet, 64MB unless the
+     * bearmaps.prefetchBytes system property says otherwise.
+     */
+    private static final long PREFETCH_BYTES = Long.getLong("bearmaps.prefetchBytes", 64L << 20);
+    /**
+     * The most bytes of generated vector tiles to cache, 16MB unless the
+     * bearmaps.vectorTileCacheBytes system property says otherwise.
+     */
+    private static final long VECTOR_TILE_CACHE_BYTES =
+            Long.getLong("bearmaps.vectorTileCacheBytes", 16L << 20);
+    /**
+     * The number of autocomplete results sent when the request has no limit, set by the
+     * bearmaps.searchTopK system property.
+     */
+    private static final int SEARCH_TOP_K = Integer.getInteger("bearmaps.searchTopK", 10);
+    /**
+     * The most bytes of autocomplete responses to cache, 4MB unless the
+     * bearmaps.searchCacheBytes system property says otherwise.
+     */
+    private static final long SEARCH_CACHE_BYTES =
+            Long.getLong("bearmaps.searchCacheBytes", 4L << 20);
+    /**
+     * Raster, tile, search, reverse geocoding, routing and batch routing requests each run on
+     * their own threads, with their own queue and deadline. The defaults below are overridden by
+     * the bearmaps.NAMEThreads, bearmaps.NAMEQueue and bearmaps.NAMEDeadlineMillis system
+     * properties, where NAME is raster, tile, search, reverse, route or batch. Raster requests
+     * get one thread per processor and no more, so they cannot starve the other endpoints of
+     * CPU.
+     */
+    private static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+    /**
+     * Request threads beyond the capacity of the executors, for the endpoints without one,
+     * such as /metrics and the page, and for the server's own acceptor and selector threads.
+     */
+    private static final int SPARE_REQUEST_THREADS =
+            Integer.getInteger("bearmaps.spareRequestThreads", 32);
+    /** Request threads kept even when idle. */
+    private static final int MIN_REQUEST_THREADS = 8;
+    /** How long the other request threads are kept idle. */
+    private static final int REQUEST_THREAD_IDLE_MILLIS = 60000;
+    /** Clients refused for lack of room are asked to retry after this many seconds. */
+    private static final int RETRY_AFTER_SECONDS =
+            Integer.getInteger("bearmaps.retryAfterSeconds", 1);
+    /** The most locations looked up by one batch reverse geocoding request. */
+    private static final int REVERSE_BATCH_LIMIT = 10000;
+    /** The most routes found by one batch routing request. */
+    private static final int ROUTE_BATCH_LIMIT = 10000;
+    /** Batch routes are found this many at a time in parallel, and each block sent when done. */
+    private static final int ROUTE_BLOCK = 256;
+    /** The most locations sent by a full search without a limit. */
+    private static final int FULL_SEARCH_LIMIT = 100;
+    /** Fuzzy search terms of up to this many letters may have one typo, longer ones two. */
+    private static final int FUZZY_SHORT_TERM = 5;
+    /** Serializes JSON responses; thread-safe, so shared by all requests. */
+    private static final Gson GSON = new Gson();
+    /** Tiles never change while the server runs, so clients may cache them for a day. */
+    private static final String TILE_CACHE_CONTROL = "public, max-age=86400";
+    /** Default format and quality of the binary raster endpoint. */
+    private static final String DEFAULT_BINARY_FORMAT = "jpg";
+    private static final float DEFAULT_BINARY_QUALITY = 0.85F;
     /** Route stroke information: typically roads are not more than 5px wide. */
     public static final float ROUTE_STROKE_WIDTH_PX = 5.0f;
     /** Route stroke information: Cyan with half transparency. */
     public static final Color ROUTE_STROKE_COLOR = new Color(108, 181, 230, 200);
     /** The tile images are in the IMG_ROOT folder. */
-    private static final String IMG_ROOT = "img/";
+    static final String IMG_ROOT = "img/";
     /**
      * The OSM XML file path. Downloaded from <a href="http://download.bbbike.org/osm/">here</a>
      * using custom region selection.
      **/
-    private static final String OSM_DB_PATH = "berkeley.osm";
+    static final String OSM_DB_PATH = "berkeley.osm";
+    /** The search index file, written by SearchIndexBuilder. */
+    static final String SEARCH_INDEX_PATH = "search.idx";
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -91,28 +214,120 @@ public class MapServer {
      **/
     public static void initialize() {
 
-        cleanedToOriginal = new HashMap<>();
+        metrics = new Metrics();
         graphDB = new GraphDB(OSM_DB_PATH);
         imageNameMap = new HashMap<>();
         imageMap = new HashMap<>();
         coordinateMap = new HashMap<>();
         tree.initialize();
-        trie = new Trie();
-        pointToName = new HashMap<>();
-
-        for (Map.Entry<String, Point> entry: graphDB.nameToPoint.entrySet()) {
-            String name = entry.getKey();
-            String cleanName = cleanString(name);
-            pointToName.put(entry.getValue(), name);
-            if (name != null && cleanName.length() != 0) {
-                trie.addWord(cleanName);
-                cleanedToOriginal.put(cleanName, name);
-            }
+        tiles = new TileStore(IMG_ROOT, tree, PREFETCH_BYTES);
+        rasterCache = new ByteLruCache(RASTER_CACHE_BYTES);
+        prefetcher = new TilePrefetcher(tiles, PREFETCH_THREADS, PREFETCH_QUEUE_LIMIT);
+        roads = new EdgeGrid(graphDB);
+        vectorTiles = new VectorTiles(roads, VECTOR_TILE_CACHE_BYTES);
+        search = SearchIndex.load(new File(SEARCH_INDEX_PATH), new File(OSM_DB_PATH));
+        places = search.places();
+        searchCache = new SearchCache(SEARCH_CACHE_BYTES);
+        geocoder = new ReverseGeocoder(places, roads);
+        roadGraph = new RoadGraph(graphDB);
+        rasterExecutor = newEndpointExecutor("raster", PROCESSORS, 4 * PROCESSORS, 10000);
+        tileExecutor = newEndpointExecutor("tile", 4 * PROCESSORS, 256, 5000);
+        searchExecutor = newEndpointExecutor("search", 2 * PROCESSORS, 256, 2000);
+        reverseExecutor = newEndpointExecutor("reverse", PROCESSORS, 64, 10000);
+        routeExecutor = newEndpointExecutor("route", PROCESSORS, 64, 10000);
+        batchExecutor = newEndpointExecutor("batch", PROCESSORS, 16, 120000);
+        initializeMetrics();
+    }
+
+    /**
+     * Registers the stages and counters of the server in metrics.
+     */
+    private static void initializeMetrics() {
+        rasterTilesStage = newStage("raster_tiles");
+        registerStage("tile_read", tiles.reads());
+        drawImagesStage = newStage("draw_images");
+        resampleStage = newStage("resample");
+        drawRouteStage = newStage("draw_route");
+        encodeStage = newStage("encode");
+        serializeStage = newStage("serialize");
+        snapStage = newStage("snap");
+        routeSearchStage = newStage("route_search");
+        routeSearches = metrics.counter("bearmaps_route_searches_total", "Route searches run.",
+                "");
+        nodesSettled = metrics.counter("bearmaps_route_nodes_settled_total",
+                "Nodes settled by route searches.", "");
+        String hits = "bearmaps_cache_hits_total";
+        String hitsHelp = "Lookups that found what they looked for in a cache.";
+        String misses = "bearmaps_cache_misses_total";
+        String missesHelp = "Lookups that did not find what they looked for in a cache.";
+        metrics.counter(hits, hitsHelp, "cache=\"tile\"", tiles::hits);
+        metrics.counter(misses, missesHelp, "cache=\"tile\"", tiles::misses);
+        metrics.counter(hits, hitsHelp, "cache=\"raster\"", rasterCache::hits);
+        metrics.counter(misses, missesHelp, "cache=\"raster\"", rasterCache::misses);
+        metrics.counter(hits, hitsHelp, "cache=\"search\"", searchCache.responses()::hits);
+        metrics.counter(misses, missesHelp, "cache=\"search\"",
+                searchCache.responses()::misses);
+        metrics.counter("bearmaps_cache_evictions_total", "Entries evicted from a cache.",
+                "cache=\"raster\"", rasterCache::evictions);
+        metrics.counter("bearmaps_cache_evictions_total", "Entries evicted from a cache.",
+                "cache=\"search\"", searchCache.responses()::evictions);
+        metrics.gauge("bearmaps_cache_bytes", "Bytes held by a cache.", "cache=\"raster\"",
+                rasterCache::bytes);
+        metrics.gauge("bearmaps_cache_bytes", "Bytes held by a cache.", "cache=\"search\"",
+                searchCache.responses()::bytes);
+        metrics.gauge("bearmaps_cache_bytes", "Bytes held by a cache.", "cache=\"prefetch\"",
+                tiles::prefetchedBytes);
+        String coalesced = "bearmaps_coalesced_total";
+        String coalescedHelp = "Requests that waited for the same work already running.";
+        metrics.counter(coalesced, coalescedHelp, "work=\"raster\"", rasterFlights::coalesced);
+        metrics.counter(coalesced, coalescedHelp, "work=\"search\"",
+                searchCache.flights()::coalesced);
+    }
+
+    /** Registers a new latency histogram for the stage called name. */
+    private static LatencyHistogram newStage(String name) {
+        return registerStage(name, new LatencyHistogram());
+    }
+
+    /** Registers the latency histogram of the stage called name. */
+    private static LatencyHistogram registerStage(String name, LatencyHistogram stage) {
+        metrics.histogram("bearmaps_stage_seconds",
+                "Time taken by a stage of raster and route requests.",
+                "stage=\"" + name + "\"", stage);
+        return stage;
+    }
+
+    /**
+     * Creates the executor of the endpoints called name, with the given defaults unless the
+     * bearmaps.nameThreads, bearmaps.nameQueue and bearmaps.nameDeadlineMillis system properties
+     * say otherwise.
+     */
+    private static EndpointExecutor newEndpointExecutor(String name, int threads, int queueLimit,
+            long deadlineMillis) {
+        String prefix = "bearmaps." + name;
+        return new EndpointExecutor(name, Integer.getInteger(prefix + "Threads", threads),
+                Integer.getInteger(prefix + "Queue", queueLimit),
+                Long.getLong(prefix + "DeadlineMillis", deadlineMillis), RETRY_AFTER_SECONDS,
+                metrics);
+    }
+
+    /**
+     * Gets the number of request threads the server needs: the endpoints of every executor
+     * hold a request thread for each request it admits, so a burst to one endpoint can only
+     * take all of the request threads if there are fewer than the executors admit together.
+     */
+    static int requestThreads() {
+        int threads = SPARE_REQUEST_THREADS;
+        for (EndpointExecutor executor : new EndpointExecutor[]{rasterExecutor, tileExecutor,
+                searchExecutor, reverseExecutor, routeExecutor, batchExecutor}) {
+            threads += executor.capacity();
         }
+        return threads;
     }
 
     public static void main(String[] args) {
         initialize();
+        threadPool(requestThreads(), MIN_REQUEST_THREADS, REQUEST_THREAD_IDLE_MILLIS);
         staticFileLocation("/page");
         /* Allow for all origin requests (since this is not an authenticated server, we do not
          * care about CSRF).  */
@@ -120,55 +335,232 @@ public class MapServer {
             response.header("Access-Control-Allow-Origin", "*");
             response.header("Access-Control-Request-Method", "*");
             response.header("Access-Control-Allow-Headers", "*");
+            response.header("Access-Control-Expose-Headers", "*");
         });
 
         /* Define the raster endpoint for HTTP GET requests. I use anonymous functions to define
          * the request handlers. */
-        get("/raster", (req, res) -> {
+        get("/raster", rasterExecutor.wrap((req, res) -> {
             HashMap<String, Double> rasterParams =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAM);
             /* Required to have valid raster params */
             validateRequestParameters(rasterParams, REQUIRED_RASTER_REQUEST_PARAM);
-            /* The png image is written to the ByteArrayOutputStream */
-            Map<String, Object> rasteredImgParams = new HashMap<>();
-            /* getMapRaster() does almost all the work for this API call */
-            BufferedImage im = getMapRaster(rasterParams, rasteredImgParams);
             /* Check if we have routing parameters. */
             HashMap<String, Double> routeParams =
                     getRequestParams(req, REQUIREDROUTEREQUESTPARAMS);
-            /* If we do, draw the route too. */
-            if (hasRequestParameters(routeParams, REQUIREDROUTEREQUESTPARAMS)) {
-                findAndDrawRoute(routeParams, rasteredImgParams, im);
+            Map<String, Double> viewport = getExactViewport(req, rasterParams);
+            boolean vectorRoute = isVectorRouteOverlay(req);
+            String client = req.ip();
+            Map<String, String> headers = new HashMap<>();
+            String json = rasterExecutor.call(res, () -> {
+                Map<String, Object> rasteredImgParams = new HashMap<>();
+                /* getRasterTiles() finds the tiles, which are only drawn on a raster cache
+                 * miss */
+                String[][] names = getRasterTiles(rasterParams, rasteredImgParams);
+                prefetcher.observe(client, TileRange.of(names));
+                List<Long> route = null;
+                if (hasRequestParameters(routeParams, REQUIREDROUTEREQUESTPARAMS)) {
+                    route = findAndDrawRoute(routeParams, rasteredImgParams, null);
+                }
+                /* With route_overlay=vector the route is returned as coordinates for the
+                 * client to draw, rather than drawn into the raster, so that the raster stays
+                 * cacheable. */
+                if (route != null && vectorRoute) {
+                    rasteredImgParams.put("route_overlay", getRouteCoordinates(route));
+                    route = null;
+                }
+                /* On an image query success, add the image data to the response. With
+                 * exact=true the raster is cropped to the query box and resampled to the
+                 * viewport size. */
+                byte[] encoded = null;
+                if (rasteredImgParams.containsKey("query_success")
+                        && (Boolean) rasteredImgParams.get("query_success")) {
+                    encoded = getEncodedRaster(names, rasteredImgParams, route, viewport,
+                            RasterEncoder.Format.JPG, 1.0F, headers);
+                }
+                /* Encode the image in Base64 and the response to Json */
+                long start = System.nanoTime();
+                if (encoded != null) {
+                    String encodedImage = Base64.getEncoder().encodeToString(encoded);
+                    rasteredImgParams.put("b64_encoded_image_data", encodedImage);
+                }
+                String serialized = GSON.toJson(rasteredImgParams);
+                serializeStage.recordSince(start);
+                return serialized;
+            });
+            headers.forEach(res::header);
+            return json;
+        }));
+
+        /* Define the binary raster endpoint. The raster parameters are sent as headers and the
+         * body is the encoded image itself, so it is not inflated by Base64 and Json. The optional
+         * format (jpg, png or webp) and quality (0 to 1) parameters choose the encoding, and
+         * exact=true resamples the raster to the query box as in /raster. */
+        get("/raster.bin", rasterExecutor.wrap((req, res) -> {
+            HashMap<String, Double> rasterParams =
+                    getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAM);
+            validateRequestParameters(rasterParams, REQUIRED_RASTER_REQUEST_PARAM);
+            RasterEncoder.Format format = getFormatParam(req);
+            float quality = getQualityParam(req);
+            HashMap<String, Double> routeParams =
+                    getRequestParams(req, REQUIREDROUTEREQUESTPARAMS);
+            Map<String, Double> viewport = getExactViewport(req, rasterParams);
+            String client = req.ip();
+            Map<String, Object> rasteredImgParams = new HashMap<>();
+            Map<String, String> headers = new HashMap<>();
+            byte[] encoded = rasterExecutor.call(res, () -> {
+                String[][] names = getRasterTiles(rasterParams, rasteredImgParams);
+                prefetcher.observe(client, TileRange.of(names));
+                List<Long> route = null;
+                if (hasRequestParameters(routeParams, REQUIREDROUTEREQUESTPARAMS)) {
+                    route = findAndDrawRoute(routeParams, rasteredImgParams, null);
+                }
+                return getEncodedRaster(names, rasteredImgParams, route, viewport, format,
+                        quality, headers);
+            });
+            headers.forEach(res::header);
+            setRasterHeaders(res, rasteredImgParams);
+            res.header("X-encoded-bytes", String.valueOf(encoded.length));
+            res.type(format.mimeType);
+            return encoded;
+        }));
+
+        /* Define the streaming raster endpoint. The raster parameters are sent as headers, and
+         * the image itself as JPG strips of one tile row each, written as soon as they are
+         * composed. */
+        get("/raster/strips", rasterExecutor.wrap((req, res) -> {
+            HashMap<String, Double> rasterParams =
+                    getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAM);
+            validateRequestParameters(rasterParams, REQUIRED_RASTER_REQUEST_PARAM);
+            HashMap<String, Double> routeParams =
+                    getRequestParams(req, REQUIREDROUTEREQUESTPARAMS);
+            String client = req.ip();
+            res.type("application/octet-stream");
+            rasterExecutor.stream(res, (headers, out) -> {
+                Map<String, Object> rasteredImgParams = new HashMap<>();
+                String[][] names = getRasterTiles(rasterParams, rasteredImgParams);
+                prefetcher.observe(client, TileRange.of(names));
+                List<Long> route = null;
+                if (hasRequestParameters(routeParams, REQUIREDROUTEREQUESTPARAMS)) {
+                    route = findAndDrawRoute(routeParams, rasteredImgParams, null);
+                }
+                for (Map.Entry<String, Object> entry : rasteredImgParams.entrySet()) {
+                    headers.put(getRasterHeader(entry.getKey()),
+                            String.valueOf(entry.getValue()));
+                }
+                headers.put("X-strip-count", String.valueOf(names.length));
+                writeRasterStrips(names, rasteredImgParams, route, out);
+            });
+            return "";
+        }));
+
+        /* Define the tile endpoint. Tile (z, x, y) is the tile in column x and row y of depth z,
+         * counting from the upper left, and is sent exactly as stored on disk. */
+        get("/tiles/:z/:x/:y", tileExecutor.wrap((req, res) -> {
+            String name = getTileParam(req);
+            File file = tiles.getFile(name);
+            if (!file.isFile()) {
+                halt(NOT_FOUND_RESPONSE, "Tile not found.");
             }
-            /* On an image query success, add the image data to the response */
-            if (rasteredImgParams.containsKey("query_success")
-                    && (Boolean) rasteredImgParams.get("query_success")) {
-                ByteArrayOutputStream os = new ByteArrayOutputStream();
-                writeJpgToStream(im, os);
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
-                rasteredImgParams.put("b64_encoded_image_data", encodedImage);
-                os.flush();
-                os.close();
+            /* Only hashing the tile the first time is work; sending it is the request's I/O. */
+            String eTag = tileExecutor.call(res, () -> tiles.getETag(name));
+            res.header("ETag", eTag);
+            res.header("Cache-Control", TILE_CACHE_CONTROL);
+            if (matchesETag(req.headers("If-None-Match"), eTag)) {
+                res.status(NOT_MODIFIED_RESPONSE);
+                return "";
             }
-            /* Encode response to Json */
-            Gson gson = new Gson();
-            return gson.toJson(rasteredImgParams);
-        });
+            res.type("image/png");
+            res.raw().setContentLengthLong(file.length());
+            tileExecutor.sent(tiles.copyTo(name, res.raw().getOutputStream()));
+            return "";
+        }));
+
+        /* Define the vector tile endpoint. Vector tile (z, x, y) holds the roads of the same
+         * area as tile (z, x, y), in the format described in VectorTiles, and may be deeper
+         * than the deepest image tiles. */
+        get("/vtiles/:z/:x/:y", tileExecutor.wrap((req, res) -> {
+            int[] tile = getTileCoordinates(req, ".bin");
+            byte[] encoded = tileExecutor.call(res,
+                    () -> vectorTiles.getTile(tile[0], tile[1], tile[2]));
+            res.header("Cache-Control", TILE_CACHE_CONTROL);
+            res.type("application/octet-stream");
+            return encoded;
+        }));
 
         /* Define the API endpoint for search */
-        get("/search", (req, res) -> {
+        get("/search", searchExecutor.wrap((req, res) -> {
             Set<String> reqParams = req.queryParams();
-            String term = req.queryParams("term");
-            Gson gson = new Gson();
+            String term = req.queryParams("term") == null ? "" : req.queryParams("term");
             /* Search for actual location data. */
             if (reqParams.contains("full")) {
-                List<Map<String, Object>> data = getLocations(term);
-                return gson.toJson(data);
+                double[] center = getViewportCenter(req);
+                int limit = getLimitParam(req, FULL_SEARCH_LIMIT);
+                return searchExecutor.call(res,
+                        () -> GSON.toJson(getLocations(term, center[0], center[1], limit)));
             } else {
-                /* Search for prefix matching strings. */
-                List<String> matches = getLocationsByPrefix(term);
-                return gson.toJson(matches);
+                /* Answers depend only on the normalized term and the options, so they are
+                 * cached by them. */
+                int limit = getLimitParam(req, SEARCH_TOP_K);
+                int maxEdits = getFuzzyParam(req, term);
+                String key = limit + "/" + maxEdits + "/" + TextNormalizer.local().normalize(term);
+                byte[] json = searchExecutor.call(res, () -> searchCache.get(key,
+                        () -> GSON.toJson(getAutocompleteNames(search, term, limit, maxEdits))
+                                .getBytes(StandardCharsets.UTF_8)));
+                res.type("application/json");
+                return json;
             }
+        }));
+
+        /* Define the API endpoint for reverse geocoding a location */
+        get("/reverse", reverseExecutor.wrap((req, res) -> {
+            double[] location = getReverseLocation(req);
+            String json = reverseExecutor.call(res,
+                    () -> GSON.toJson(geocoder.lookup(location[1], location[0])));
+            res.type("application/json");
+            return json;
+        }));
+
+        /* Define the API endpoint for reverse geocoding a batch of locations, posted as a
+         * JSON array of [lat, lon] pairs. */
+        post("/reverse", reverseExecutor.wrap((req, res) -> {
+            double[][] locations = getReverseBatch(req);
+            String json = reverseExecutor.call(res, () -> GSON.toJson(
+                    reverseExecutor.parallel(() -> geocoder.lookupAll(locations))));
+            res.type("application/json");
+            return json;
+        }));
+
+        /* Define the API endpoint for routing, without drawing the route on a raster. */
+        get("/route", routeExecutor.wrap((req, res) -> {
+            HashMap<String, Double> routeParams =
+                    getRequestParams(req, REQUIREDROUTEREQUESTPARAMS);
+            validateRequestParameters(routeParams, REQUIREDROUTEREQUESTPARAMS);
+            String json = routeExecutor.call(res, () -> {
+                FoundRoute route = findRoute(routeParams.get("start_lon"),
+                        routeParams.get("start_lat"), routeParams.get("end_lon"),
+                        routeParams.get("end_lat"));
+                return GSON.toJson(getRouteResult(route, true));
+            });
+            res.type("application/json");
+            return json;
+        }));
+
+        /* Define the API endpoint for routing a batch of start and end points, posted as a
+         * JSON array of [start_lat, start_lon, end_lat, end_lon] arrays. The routes are sent
+         * as newline-delimited JSON, one line per pair in the order posted, as they are found. */
+        post("/routes", batchExecutor.wrap((req, res) -> {
+            double[][] pairs = getRouteBatch(req);
+            res.type("application/x-ndjson");
+            batchExecutor.stream(res, (headers, out) -> writeRoutes(pairs, out));
+            return "";
+        }));
+
+        /* Define the metrics endpoint, in the Prometheus text format. It runs on the request
+         * thread, so it answers even when every executor is busy. */
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4");
+            return metrics.write();
         });
 
         /* Define map application redirect */
@@ -221,6 +613,545 @@ public class MapServer {
         return params;
     }
 
+    /**
+     * Gets the raster of the tiles names, encoded. Rasters without a route are kept in the
+     * raster cache, keyed by their tile range and encoding, so a repeated viewport is neither
+     * composed nor encoded again. Rasters resampled to an exact viewport are not cached, since
+     * viewports rarely repeat.
+     * Concurrent requests for the same raster, route and viewport included, are coalesced: one
+     * of them composes and encodes it, and the others wait and share its bytes. Puts the
+     * X-raster-cache header, hit, miss or coalesced, in headers, and on a miss the
+     * X-encode-cpu-micros header, the CPU time spent encoding.
+     * @param names the tile names, indexed by [row][column].
+     * @param rasteredImageParams parameters returned from the image rastering.
+     * @param route the node ids of the route to draw, or null if there is no route.
+     * @param viewport the raster request parameters, to resample the raster to exactly the
+     *                 query box and viewport size, or null to keep whole tiles.
+     * @param format the format to encode as.
+     * @param quality compression quality between 0 and 1, for lossy formats.
+     * @param headers receives the headers to send with the raster.
+     * @return the encoded raster.
+     * @throws IOException if the raster could not be encoded.
+     */
+    private static byte[] getEncodedRaster(String[][] names,
+            Map<String, Object> rasteredImageParams, List<Long> route,
+            Map<String, Double> viewport, RasterEncoder.Format format, float quality,
+            Map<String, String> headers) throws IOException {
+        boolean cacheable = route == null && viewport == null;
+        String key = TileRange.of(names) + "/" + format.name + "/" + quality;
+        byte[] cached = cacheable ? rasterCache.get(key) : null;
+        if (cached != null) {
+            headers.put("X-raster-cache", "hit");
+            return cached;
+        }
+        /* Routes with the same ends may differ in between, so a route is known by all of its
+         * nodes. */
+        StringBuilder flightKey = new StringBuilder(key);
+        if (route != null) {
+            flightKey.append("/route");
+            for (Long id : route) {
+                flightKey.append('/').append(id);
+            }
+        }
+        if (viewport != null) {
+            flightKey.append("/exact");
+            for (String param : REQUIRED_RASTER_REQUEST_PARAM) {
+                flightKey.append('/').append(viewport.get(param));
+            }
+        }
+        boolean[] led = new boolean[1];
+        EncodedRaster raster = rasterFlights.get(flightKey.toString(), () -> {
+            led[0] = true;
+            EncodedRaster encoded = encodeRaster(names, rasteredImageParams, route, viewport,
+                    format, quality);
+            if (cacheable) {
+                rasterCache.put(key, encoded.bytes);
+            }
+            return encoded;
+        });
+        if (led[0]) {
+            headers.put("X-raster-cache", "miss");
+            headers.put("X-encode-cpu-micros", String.valueOf(raster.encodeCpuNanos / 1000));
+        } else {
+            headers.put("X-raster-cache", "coalesced");
+            /* Resampling changes the raster bounds and size; take them from the leader. */
+            rasteredImageParams.putAll(raster.params);
+        }
+        return raster.bytes;
+    }
+
+    /**
+     * An encoded raster, with the raster parameters it was composed with and the CPU time its
+     * encoding took.
+     */
+    static final class EncodedRaster {
+        final byte[] bytes;
+        final Map<String, Object> params;
+        final long encodeCpuNanos;
+
+        EncodedRaster(byte[] bytes, Map<String, Object> params, long encodeCpuNanos) {
+            this.bytes = bytes;
+            this.params = params;
+            this.encodeCpuNanos = encodeCpuNanos;
+        }
+    }
+
+    /**
+     * Composes the raster of the tiles names, draws the route on it and encodes it, without
+     * the raster cache or coalescing.
+     * @return the encoded raster, with a copy of rasteredImageParams once composed.
+     * @throws IOException if the raster could not be encoded.
+     */
+    static EncodedRaster encodeRaster(String[][] names, Map<String, Object> rasteredImageParams,
+            List<Long> route, Map<String, Double> viewport, RasterEncoder.Format format,
+            float quality) throws IOException {
+        BufferedImage im = viewport == null ? drawImages(names)
+                : resampleToViewport(names, rasteredImageParams, viewport);
+        if (route != null) {
+            drawRouteHelper(im, rasteredImageParams, route);
+        }
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        long cpuStart = RasterEncoder.threadCpuNanos();
+        RasterEncoder.encode(im, format, quality, os);
+        long cpuNanos = RasterEncoder.threadCpuNanos() - cpuStart;
+        encodeStage.recordSince(start);
+        return new EncodedRaster(os.toByteArray(), new HashMap<>(rasteredImageParams), cpuNanos);
+    }
+
+    /**
+     * Gets the viewport to resample the raster to, if the request asks for it with exact=true.
+     * @param req HTTP Request
+     * @param rasterParams the raster request parameters.
+     * @return rasterParams if the raster should be resampled, or null.
+     */
+    private static Map<String, Double> getExactViewport(spark.Request req,
+            Map<String, Double> rasterParams) {
+        return "true".equals(req.queryParams("exact")) ? rasterParams : null;
+    }
+
+    /**
+     * Composes only the part of the raster inside the query box, scaled to the viewport's
+     * pixels per degree, so that no pixels the user cannot see are encoded and sent. Each tile
+     * is scaled straight onto the result, without composing the whole raster first.
+     * Changes the raster bounds and size in rasteredImageParams to those of the result, which
+     * are the query box and the viewport size unless the query box extends past the root tile.
+     * @param names the tile names, indexed by [row][column].
+     * @param rasteredImageParams parameters returned from the image rastering.
+     * @param viewport the raster request parameters.
+     * @return the resampled raster.
+     */
+    static BufferedImage resampleToViewport(String[][] names,
+            Map<String, Object> rasteredImageParams, Map<String, Double> viewport) {
+        long start = System.nanoTime();
+        double rasterULLon = (Double) rasteredImageParams.get("raster_ul_lon");
+        double rasterULLat = (Double) rasteredImageParams.get("raster_ul_lat");
+        double rasterLRLon = (Double) rasteredImageParams.get("raster_lr_lon");
+        double rasterLRLat = (Double) rasteredImageParams.get("raster_lr_lat");
+        double ullon = Math.max(viewport.get("ullon"), rasterULLon);
+        double ullat = Math.min(viewport.get("ullat"), rasterULLat);
+        double lrlon = Math.min(viewport.get("lrlon"), rasterLRLon);
+        double lrlat = Math.max(viewport.get("lrlat"), rasterLRLat);
+        double lonPerPixel = (viewport.get("lrlon") - viewport.get("ullon")) / viewport.get("w");
+        double latPerPixel = (viewport.get("ullat") - viewport.get("lrlat")) / viewport.get("h");
+        int width = Math.max(1, (int) Math.round((lrlon - ullon) / lonPerPixel));
+        int height = Math.max(1, (int) Math.round((ullat - lrlat) / latPerPixel));
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        double tileLon = (rasterLRLon - rasterULLon) / names[0].length;
+        double tileLat = (rasterULLat - rasterLRLat) / names.length;
+        for (int i = 0; i < names.length; i++) {
+            /* Rounding every tile edge the same way leaves no gaps between tiles. */
+            int top = (int) Math.round((ullat - rasterULLat + i * tileLat) / latPerPixel);
+            int bottom = (int) Math.round((ullat - rasterULLat + (i + 1) * tileLat)
+                    / latPerPixel);
+            if (bottom <= 0 || top >= height) {
+                continue;
+            }
+            for (int j = 0; j < names[i].length; j++) {
+                int left = (int) Math.round((rasterULLon + j * tileLon - ullon) / lonPerPixel);
+                int right = (int) Math.round((rasterULLon + (j + 1) * tileLon - ullon)
+                        / lonPerPixel);
+                if (right <= 0 || left >= width || names[i][j].equals("")) {
+                    continue;
+                }
+                BufferedImage tile = tiles.getImage(names[i][j]);
+                if (tile != null) {
+                    graphics.drawImage(tile, left, top, right, bottom, 0, 0, tile.getWidth(),
+                            tile.getHeight(), null);
+                }
+            }
+        }
+        graphics.dispose();
+
+        rasteredImageParams.put("raster_ul_lon", ullon);
+        rasteredImageParams.put("raster_ul_lat", ullat);
+        rasteredImageParams.put("raster_lr_lon", lrlon);
+        rasteredImageParams.put("raster_lr_lat", lrlat);
+        rasteredImageParams.put("raster_width", width);
+        rasteredImageParams.put("raster_height", height);
+        resampleStage.recordSince(start);
+        return image;
+    }
+
+    /**
+     * Tells whether the request asks for the route as a vector overlay.
+     */
+    private static boolean isVectorRouteOverlay(spark.Request req) {
+        return "vector".equals(req.queryParams("route_overlay"));
+    }
+
+    /**
+     * Tells whether an If-None-Match header matches a strong ETag: whether it is * or one of
+     * its comma separated entity tags is exactly eTag. Weak tags never match.
+     * @param ifNoneMatch the header, or null if there was none.
+     * @param eTag the quoted ETag of the resource.
+     */
+    private static boolean matchesETag(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        int i = 0;
+        int length = ifNoneMatch.length();
+        while (i < length) {
+            char c = ifNoneMatch.charAt(i);
+            if (c == ' ' || c == '\t' || c == ',') {
+                i++;
+                continue;
+            }
+            /* An entity tag is an optional W/ and a quoted string, which may hold commas. */
+            int start = i;
+            if (ifNoneMatch.startsWith("W/", i)) {
+                i += 2;
+            }
+            if (i < length && ifNoneMatch.charAt(i) == '"') {
+                int close = ifNoneMatch.indexOf('"', i + 1);
+                i = close < 0 ? length : close + 1;
+            } else {
+                while (i < length && ifNoneMatch.charAt(i) != ',') {
+                    i++;
+                }
+            }
+            String tag = ifNoneMatch.substring(start, i).trim();
+            if (tag.equals("*") || tag.equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the coordinates of the nodes along a route.
+     * @param route the node ids of the route.
+     * @return a {lon, lat} pair for every node, in order.
+     */
+    static List<double[]> getRouteCoordinates(List<Long> route) {
+        List<double[]> coordinates = new ArrayList<>(route.size());
+        for (Long id : route) {
+            Point p = graphDB.NodeDB.get(id).getP();
+            coordinates.add(new double[]{p.x, p.y});
+        }
+        return coordinates;
+    }
+
+    /**
+     * Gets the name of the tile at the z, x and y path parameters, halting if there is no
+     * such tile. A .png ending on y is ignored.
+     * @param req HTTP Request
+     * @return the tile name, without the .png ending.
+     */
+    private static String getTileParam(spark.Request req) {
+        int[] tile = getTileCoordinates(req, ".png");
+        return QuadTree.tileName(tile[0], tile[1], tile[2]);
+    }
+
+    /**
+     * Gets the z, x and y path parameters, halting if they are not a tile of the QuadTree
+     * scheme.
+     * @param req HTTP Request
+     * @param ending a file ending on y to ignore.
+     * @return {depth, column, row}.
+     */
+    private static int[] getTileCoordinates(spark.Request req, String ending) {
+        String y = req.params(":y");
+        if (y.endsWith(ending)) {
+            y = y.substring(0, y.length() - ending.length());
+        }
+        try {
+            int depth = Integer.parseInt(req.params(":z"));
+            int column = Integer.parseInt(req.params(":x"));
+            int row = Integer.parseInt(y);
+            if (depth >= 0 && depth < Integer.SIZE - 1 && column >= 0 && row >= 0
+                    && column < 1 << depth && row < 1 << depth) {
+                return new int[]{depth, column, row};
+            }
+        } catch (NumberFormatException e) {
+            /* Bad input from the client; it is answered below. */
+        }
+        halt(NOT_FOUND_RESPONSE, "Tile not found.");
+        return null;
+    }
+
+    /**
+     * Gets the most search results to send, halting if the limit is not a positive number.
+     * @param req HTTP Request
+     * @param defaultLimit the limit if none was requested.
+     * @return the limit.
+     */
+    private static int getLimitParam(spark.Request req, int defaultLimit) {
+        String limit = req.queryParams("limit");
+        if (limit == null) {
+            return defaultLimit;
+        }
+        try {
+            int value = Integer.parseInt(limit);
+            if (value > 0) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            /* Bad input from the client; it is answered below. */
+        }
+        halt(HALT_RESPONSE, "Incorrect parameters - limit must be a positive number.");
+        return 0;
+    }
+
+    /**
+     * Gets the location to reverse geocode from the lat and lon parameters.
+     * @param req HTTP Request
+     * @return {lat, lon}.
+     */
+    private static double[] getReverseLocation(spark.Request req) {
+        try {
+            double lat = Double.parseDouble(req.queryParams("lat"));
+            double lon = Double.parseDouble(req.queryParams("lon"));
+            if (Double.isFinite(lat) && Double.isFinite(lon)) {
+                return new double[]{lat, lon};
+            }
+        } catch (NullPointerException | NumberFormatException e) {
+            /* Bad input from the client; it is answered below. */
+        }
+        halt(HALT_RESPONSE, "Incorrect parameters - provide lat and lon numbers.");
+        return null;
+    }
+
+    /**
+     * Gets the locations to reverse geocode from the body of a batch request, a JSON array of
+     * up to REVERSE_BATCH_LIMIT [lat, lon] pairs.
+     * @param req HTTP Request
+     * @return the locations, each as {lat, lon}.
+     */
+    private static double[][] getReverseBatch(spark.Request req) {
+        double[][] locations = null;
+        try {
+            locations = GSON.fromJson(req.body(), double[][].class);
+        } catch (JsonParseException e) {
+            /* Bad input from the client; it is answered below. */
+        }
+        if (locations == null) {
+            halt(HALT_RESPONSE, "Incorrect parameters - post an array of [lat, lon] pairs.");
+        }
+        if (locations.length > REVERSE_BATCH_LIMIT) {
+            halt(HALT_RESPONSE, "Incorrect parameters - at most " + REVERSE_BATCH_LIMIT
+                    + " locations per request.");
+        }
+        for (double[] location : locations) {
+            if (location == null || location.length != 2 || !Double.isFinite(location[0])
+                    || !Double.isFinite(location[1])) {
+                halt(HALT_RESPONSE, "Incorrect parameters - post an array of [lat, lon] pairs.");
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * Gets the start and end points posted to the batch routing endpoint, halting if the body
+     * is not an array of at most ROUTE_BATCH_LIMIT [start_lat, start_lon, end_lat, end_lon]
+     * arrays of numbers.
+     * @param req HTTP Request
+     * @return the pairs, each as {start_lat, start_lon, end_lat, end_lon}.
+     */
+    private static double[][] getRouteBatch(spark.Request req) {
+        double[][] pairs = null;
+        try {
+            pairs = GSON.fromJson(req.body(), double[][].class);
+        } catch (JsonParseException e) {
+            /* Bad input from the client; it is answered below. */
+        }
+        String expected = "Incorrect parameters - post an array of "
+                + "[start_lat, start_lon, end_lat, end_lon] arrays.";
+        if (pairs == null) {
+            halt(HALT_RESPONSE, expected);
+        }
+        if (pairs.length > ROUTE_BATCH_LIMIT) {
+            halt(HALT_RESPONSE, "Incorrect parameters - at most " + ROUTE_BATCH_LIMIT
+                    + " routes per request.");
+        }
+        for (double[] pair : pairs) {
+            if (pair == null || pair.length != 4) {
+                halt(HALT_RESPONSE, expected);
+            }
+            for (double value : pair) {
+                if (!Double.isFinite(value)) {
+                    halt(HALT_RESPONSE, expected);
+                }
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Gets the center of the client's viewport, from the ullon, ullat, lrlon and lrlat
+     * parameters if all are given, or else the center of the root tile.
+     * @param req HTTP Request
+     * @return {lon, lat}.
+     */
+    private static double[] getViewportCenter(spark.Request req) {
+        String[] bounds = {"ullon", "ullat", "lrlon", "lrlat"};
+        double[] values = {ROOT_ULLON, ROOT_ULLAT, ROOT_LRLON, ROOT_LRLAT};
+        if (req.queryParams().containsAll(Arrays.asList(bounds))) {
+            try {
+                for (int i = 0; i < bounds.length; i++) {
+                    values[i] = Double.parseDouble(req.queryParams(bounds[i]));
+                }
+            } catch (NumberFormatException e) {
+                halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            }
+        }
+        return new double[]{(values[0] + values[2]) / 2, (values[1] + values[3]) / 2};
+    }
+
+    /**
+     * Gets the most typos a search may correct. fuzzy=1 or fuzzy=2 allow that many; fuzzy
+     * without a number allows one in terms of up to FUZZY_SHORT_TERM letters and two in longer
+     * ones.
+     * @param req HTTP Request
+     * @param term the search term.
+     * @return the most edits allowed, 0 if the search is not fuzzy.
+     */
+    private static int getFuzzyParam(spark.Request req, String term) {
+        String fuzzy = req.queryParams("fuzzy");
+        if (fuzzy == null || fuzzy.equals("false") || fuzzy.equals("0")) {
+            return 0;
+        }
+        if (fuzzy.equals("1") || fuzzy.equals("2")) {
+            return Integer.parseInt(fuzzy);
+        }
+        if (fuzzy.isEmpty() || fuzzy.equals("true")) {
+            return term == null
+                    || TextNormalizer.local().normalize(term).length() <= FUZZY_SHORT_TERM ? 1 : 2;
+        }
+        halt(HALT_RESPONSE, "Incorrect parameters - fuzzy must be 1 or 2.");
+        return 0;
+    }
+
+    /**
+     * Gets the requested raster format, halting if it is unknown or has no encoder installed.
+     * @param req HTTP Request
+     * @return the format, DEFAULT_BINARY_FORMAT if none was requested.
+     */
+    private static RasterEncoder.Format getFormatParam(spark.Request req) {
+        String name = req.queryParams("format");
+        RasterEncoder.Format format =
+                RasterEncoder.Format.fromName(name == null ? DEFAULT_BINARY_FORMAT : name);
+        if (format == null || !RasterEncoder.isAvailable(format)) {
+            halt(HALT_RESPONSE, "Request failed - unsupported format " + name + ".");
+        }
+        return format;
+    }
+
+    /**
+     * Gets the requested compression quality, halting if it is not a number between 0 and 1.
+     * @param req HTTP Request
+     * @return the quality, DEFAULT_BINARY_QUALITY if none was requested.
+     */
+    private static float getQualityParam(spark.Request req) {
+        String quality = req.queryParams("quality");
+        if (quality == null) {
+            return DEFAULT_BINARY_QUALITY;
+        }
+        try {
+            float value = Float.parseFloat(quality);
+            if (value >= 0 && value <= 1) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            /* Bad input from the client; it is answered below. */
+        }
+        halt(HALT_RESPONSE, "Incorrect parameters - quality must be between 0 and 1.");
+        return DEFAULT_BINARY_QUALITY;
+    }
+
+    /**
+     * Copies the raster parameters into response headers, e.g. raster_ul_lon becomes the
+     * X-raster-ul-lon header.
+     * @param res HTTP Response
+     * @param rasteredImageParams parameters returned from the image rastering.
+     */
+    private static void setRasterHeaders(spark.Response res,
+            Map<String, Object> rasteredImageParams) {
+        for (Map.Entry<String, Object> entry : rasteredImageParams.entrySet()) {
+            res.header(getRasterHeader(entry.getKey()), String.valueOf(entry.getValue()));
+        }
+    }
+
+    /**
+     * Gets the response header of a raster parameter, e.g. X-raster-ul-lon for raster_ul_lon.
+     */
+    private static String getRasterHeader(String param) {
+        return "X-" + param.replace('_', '-');
+    }
+
+    /**
+     * Writes the raster to an <code>OutputStream</code> as horizontal strips, one row of tiles
+     * at a time, so that only a single row of tiles is composed in memory at once. Each strip is
+     * written as a 4 byte big-endian length followed by that many bytes of JPG, top strip first,
+     * and the stream is flushed after every strip.
+     * @param names the tile names, indexed by [row][column].
+     * @param rasteredImageParams parameters returned from the image rastering.
+     * @param route the node ids of the route to draw, or null if there is no route.
+     * @param os Stream to be written to.
+     * @throws IOException if the stream could not be written to.
+     */
+    static void writeRasterStrips(String[][] names, Map<String, Object> rasteredImageParams,
+            List<Long> route, OutputStream os) throws IOException {
+        BufferedImage strip = new BufferedImage(TILE_SIZE * names[0].length, TILE_SIZE,
+                BufferedImage.TYPE_INT_RGB);
+        DataOutputStream out = new DataOutputStream(os);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        /* The stages are timed over all strips and recorded once, as for a whole raster. */
+        long drawNanos = 0;
+        long routeNanos = 0;
+        long encodeNanos = 0;
+        for (int i = 0; i < names.length; i++) {
+            long start = System.nanoTime();
+            Graphics2D graphics = strip.createGraphics();
+            graphics.clearRect(0, 0, strip.getWidth(), strip.getHeight());
+            drawTileRow(names[i], graphics, 0);
+            graphics.dispose();
+            long drawn = System.nanoTime();
+            drawNanos += drawn - start;
+            if (route != null) {
+                drawRouteHelper(strip, rasteredImageParams, route, TILE_SIZE * i);
+            }
+            long routed = System.nanoTime();
+            routeNanos += routed - drawn;
+            encoded.reset();
+            writeJpgToStream(strip, encoded);
+            encodeNanos += System.nanoTime() - routed;
+            out.writeInt(encoded.size());
+            encoded.writeTo(out);
+            out.flush();
+        }
+        drawImagesStage.record(drawNanos);
+        if (route != null) {
+            drawRouteStage.record(routeNanos);
+        }
+        encodeStage.record(encodeNanos);
+    }
+
     /**
      * Write a <code>BufferedImage</code> to an <code>OutputStream</code>. The image is written as
      * a lossy JPG, but with the highest quality possible.
@@ -228,13 +1159,8 @@ public class MapServer {
      * @param os Stream to be written to.
      */
     static void writeJpgToStream(BufferedImage im, OutputStream os) {
-        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
-        ImageWriteParam param = writer.getDefaultWriteParam();
-        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-        param.setCompressionQuality(1.0F); // Highest quality of jpg possible
-        writer.setOutput(new MemoryCacheImageOutputStream(os));
         try {
-            writer.write(im);
+            RasterEncoder.encode(im, RasterEncoder.Format.JPG, 1.0F, os);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -273,10 +1199,20 @@ public class MapServer {
      */
     public static BufferedImage getMapRaster(Map<String, Double> inputParams,
             Map<String, Object> rasteredImageParams) {
+        return drawImages(getRasterTiles(inputParams, rasteredImageParams));
+    }
 
-
-
-
+    /**
+     * Finds the tiles that getMapRaster would draw, without drawing them.
+     * Fills rasteredImageParams exactly as getMapRaster does.
+     * @param inputParams the query bounding box and the user viewport width and height.
+     * @param rasteredImageParams A map of parameters for the Json response.
+     * @return the tile names, indexed by [row][column].
+     * @see #getMapRaster(Map, Map)
+     */
+    static String[][] getRasterTiles(Map<String, Double> inputParams,
+            Map<String, Object> rasteredImageParams) {
+        long start = System.nanoTime();
         Double requestedHeight = inputParams.get("h");
         Double requestedWidth = inputParams.get("w");
         Double queryULLON = inputParams.get("ullon");
@@ -293,7 +1229,7 @@ public class MapServer {
         int depth = 1;
         Double currentDPP = (ROOT_LRLON - ROOT_ULLON) / TILE_SIZE;
         Double currentLatDPP = (ROOT_ULLAT - ROOT_LRLAT) / TILE_SIZE;
-        while (currentDPP > queryLDPP && depth != 8) {
+        while (currentDPP > queryLDPP && depth != QuadTree.MAX_DEPTH + 1) {
             currentDPP /= 2;
             currentLatDPP /= 2;
             depth++;
@@ -357,62 +1293,38 @@ public class MapServer {
         rasteredImageParams.put("raster_height", height * 256);
         rasteredImageParams.put("depth", depth);
 
-        BufferedImage image = drawImages(pictureNames);
-        return image;
+        rasterTilesStage.recordSince(start);
+        return pictureNames;
     }
 
     public static BufferedImage drawImages(String[][] names) {
-        BufferedImage bigImage = null;
-        BufferedImage row = null;
-        bigImage = new BufferedImage(256 * names[0].length, 256 * names.length,
-                BufferedImage.TYPE_INT_RGB);
+        long start = System.nanoTime();
+        BufferedImage bigImage = new BufferedImage(TILE_SIZE * names[0].length,
+                TILE_SIZE * names.length, BufferedImage.TYPE_INT_RGB);
         Graphics2D graphics = bigImage.createGraphics();
-
         for (int i = 0; i < names.length; i++) {
-            try {
-                if (tree.getNode(names[i][0]).image == null) {
-                    //System.out.println("Reading file " + names[i][0]);
-                    row = ImageIO.read(new File(IMG_ROOT + names[i][0])); //the start of that row
-                    tree.getNode(names[i][0]).image = row;
-                } else {
-                    //System.out.println("I have that image in memory!");
-                    row = tree.getNode(names[i][0]).image;
-                }
-            } catch (IOException e) {
-                System.out.println("Could not read row image");
-            }
-            for (int j = 1; j < names[i].length; j++) {     //draws the rows
-                if (!(names[i][j].equals(""))) {
-                    try {
-                        BufferedImage temp = null;
-                        if ((tree.getNode(names[i][j]).image == null)) {
-                            //System.out.println("Reading file: " + IMG_ROOT + names[i][j]);
-                            temp = ImageIO.read(new File(IMG_ROOT + names[i][j]));
-                            tree.getNode(names[i][j]).image = temp;
-                        } else {
-                            //System.out.println("I have that image in memory!");
-                            temp = tree.getNode(names[i][j]).image;
-                        }
-                        Color oldColor = graphics.getColor();
-                        graphics.setColor(oldColor);
-                        graphics.drawImage(temp, j * 256, i * 256, null);
-                    } catch (IOException e) {
-                        System.out.println("Could not read the temp file");
-                    }
-                }
-            }
-            if (bigImage == null) { //if it's the first row
-                bigImage = row;
-            } else {        //adds the rows to the image
-
-                Color oldColor = graphics.getColor();
-                //draw image
-                graphics.setColor(oldColor);
-                graphics.drawImage(row, 0, 256 * i, null);
+            drawTileRow(names[i], graphics, TILE_SIZE * i);
+        }
+        graphics.dispose();
+        drawImagesStage.recordSince(start);
+        return bigImage;
+    }
 
+    /**
+     * Draws a single row of tiles onto graphics, with the top of the row at y.
+     * @param row the tile names of the row, left to right.
+     * @param graphics the graphics to draw on.
+     * @param y the pixel offset of the top of the row.
+     */
+    static void drawTileRow(String[] row, Graphics2D graphics, int y) {
+        for (int j = 0; j < row.length; j++) {
+            if (!(row[j].equals(""))) {
+                BufferedImage tile = tiles.getImage(row[j]);
+                if (tile != null) {
+                    graphics.drawImage(tile, j * TILE_SIZE, y, null);
+                }
             }
         }
-        return bigImage;
     }
 
     /**
@@ -485,29 +1397,125 @@ public class MapServer {
     public static List<Long> findAndDrawRoute(Map<String, Double> routeParams,
             Map<String, Object> rasterImageParams,
             BufferedImage im) {
-        Point start = new Point(routeParams.get("start_lon"), routeParams.get("start_lat"));
-        Point end = new Point(routeParams.get("end_lon"), routeParams.get("end_lat"));
-        Set p = graphDB.NodeDB.keySet();
-        GraphNode nearStart = null;
-        GraphNode nearEnd = null;
-        Double min1 = Double.MAX_VALUE;
-        Double min2 = Double.MAX_VALUE;
-        for (Object x : p) {
-            if (min1 > calculatedistance(graphDB.NodeDB.get(x).getP(), start)) {
-                nearStart = graphDB.NodeDB.get(x);
-                min1 = calculatedistance(graphDB.NodeDB.get(x).getP(), start);
-            }
-            if (min2 > calculatedistance(graphDB.NodeDB.get(x).getP(), end)) {
-                nearEnd = graphDB.NodeDB.get(x);
-                min2 = calculatedistance(graphDB.NodeDB.get(x).getP(), end);
-            }
+        int[] route = findRoute(routeParams.get("start_lon"), routeParams.get("start_lat"),
+                routeParams.get("end_lon"), routeParams.get("end_lat")).nodes;
+        ArrayList<Long> list = new ArrayList<>(route.length);
+        for (int node : route) {
+            list.add(roadGraph.id(node));
         }
-        ArrayList<Long> list = graphDB.shortestPath(nearStart, nearEnd);
         if (im != null) {
             im = drawRouteHelper(im, rasterImageParams, list);
         }
         return list;
     }
+
+    /**
+     * A route found by findRoute, with what its search cost.
+     */
+    static final class FoundRoute {
+        /** A route that was not searched for, because a point is not near any road. */
+        static final FoundRoute NONE = new FoundRoute(new int[0], Double.POSITIVE_INFINITY, 0);
+
+        /* The nodes of the route in roadGraph, empty if there is none. */
+        final int[] nodes;
+        /* The length of the route, or infinity if there is none. */
+        final double distance;
+        /* The number of nodes the search settled. */
+        final int settled;
+
+        FoundRoute(int[] nodes, double distance, int settled) {
+            this.nodes = nodes;
+            this.distance = distance;
+            this.settled = settled;
+        }
+    }
+
+    /**
+     * Finds the shortest route from the road node nearest to the start point to the road node
+     * nearest to the end point, with the route search of this thread.
+     * @return the route, with no nodes if there is none, and no nodes settled if there was
+     * nothing to search.
+     */
+    static FoundRoute findRoute(double startLon, double startLat, double endLon,
+            double endLat) {
+        long time = System.nanoTime();
+        int start = roadGraph.nearest(startLon, startLat);
+        int end = roadGraph.nearest(endLon, endLat);
+        snapStage.recordSince(time);
+        if (start < 0 || end < 0) {
+            return FoundRoute.NONE;
+        }
+        time = System.nanoTime();
+        RouteSearch search = roadGraph.search();
+        int[] route = search.route(start, end);
+        routeSearchStage.recordSince(time);
+        routeSearches.increment();
+        nodesSettled.add(search.settled());
+        return new FoundRoute(route, search.distance(), search.settled());
+    }
+
+    /**
+     * Finds the route of every pair and writes them to out as newline-delimited JSON, in
+     * order. The routes are found ROUTE_BLOCK at a time in parallel, on the threads of the
+     * batch endpoints, and every block is flushed once found, so the client gets the first
+     * routes while the rest are searched.
+     * Each line is a map as from getRouteResult, without coordinates.
+     * @param pairs the start and end points, each as {start_lat, start_lon, end_lat, end_lon}.
+     */
+    private static void writeRoutes(double[][] pairs, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        String[] lines = new String[ROUTE_BLOCK];
+        for (int from = 0; from < pairs.length; from += ROUTE_BLOCK) {
+            int block = from;
+            int count = Math.min(ROUTE_BLOCK, pairs.length - from);
+            batchExecutor.parallel(() -> {
+                IntStream.range(0, count).parallel().forEach(i -> {
+                    double[] pair = pairs[block + i];
+                    FoundRoute route = findRoute(pair[1], pair[0], pair[3], pair[2]);
+                    lines[i] = GSON.toJson(getRouteResult(route, false));
+                });
+                return null;
+            });
+            for (int i = 0; i < count; i++) {
+                writer.write(lines[i]);
+                writer.write('\n');
+            }
+            writer.flush();
+        }
+    }
+
+    /**
+     * Describes a route found by findRoute.
+     * @param found the route.
+     * @param coordinates whether to include the coordinates of the nodes.
+     * @return a map of parameters for the Json response: <br>
+     * "route" -> the node ids of the route, from start to end, empty if there is none. <br>
+     * "coordinates" -> a [lon, lat] pair for every node of the route, if asked for. <br>
+     * "distance" -> the length of the route, if there is one. <br>
+     * "settled" -> the number of nodes the search settled, 0 if nothing was searched.
+     */
+    private static Map<String, Object> getRouteResult(FoundRoute found, boolean coordinates) {
+        int[] route = found.nodes;
+        Map<String, Object> result = new HashMap<>();
+        long[] ids = new long[route.length];
+        for (int i = 0; i < route.length; i++) {
+            ids[i] = roadGraph.id(route[i]);
+        }
+        result.put("route", ids);
+        if (coordinates) {
+            double[][] points = new double[route.length][];
+            for (int i = 0; i < route.length; i++) {
+                points[i] = new double[]{roadGraph.lon(route[i]), roadGraph.lat(route[i])};
+            }
+            result.put("coordinates", points);
+        }
+        if (route.length > 0) {
+            result.put("distance", found.distance);
+        }
+        result.put("settled", found.settled);
+        return result;
+    }
+
     static double calculatedistance(Point from, Point to) {
         return sqrt((from.x - to.x) * (from.x - to.x) + (from.y - to.y) * (from.y - to.y));
     }
@@ -521,11 +1529,27 @@ public class MapServer {
      */
     public static BufferedImage drawRouteHelper(BufferedImage preImage, Map<String,
             Object> rasterImageParams, List<Long> points) {
+        long start = System.nanoTime();
+        drawRouteHelper(preImage, rasterImageParams, points, 0);
+        drawRouteStage.recordSince(start);
+        return preImage;
+    }
+
+    /**
+     * Draws the route onto preImage, where preImage is the part of the raster starting yOffset
+     * pixels below its top, i.e. a single strip of it. The time taken is left to the caller to
+     * record, once for the whole raster.
+     * @param yOffset the pixel row of the raster at which preImage begins.
+     * @return the new image with route drawn.
+     */
+    static BufferedImage drawRouteHelper(BufferedImage preImage, Map<String,
+            Object> rasterImageParams, List<Long> points, int yOffset) {
         HashMap<Long, GraphNode> nodeDB = graphDB.NodeDB;
         int max = points.size();
         int current = 0;
 
         Graphics2D g = preImage.createGraphics();
+        g.translate(0, -yOffset);
         BasicStroke stroke = new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
                 BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
         g.setPaint(ROUTE_STROKE_COLOR);
@@ -613,12 +1637,101 @@ public class MapServer {
      * cleaned <code>prefix</code>.
      */
     public static List<String> getLocationsByPrefix(String prefix) {
-        List<String> list = trie.getCompletions(cleanString(prefix));
-        List<String> origList = new LinkedList<>();
-        for (String word: list) {
-            origList.add(cleanedToOriginal.get(word));
+        return getLocationsByPrefix(prefix, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Collects the names of the most important OSM locations that prefix-match the query
+     * string. The names are found best first, without visiting every name that matches.
+     * @param prefix Prefix string to be searched for.
+     * @param limit The most names to collect.
+     * @return A <code>List</code> of the full names of locations whose cleaned name matches the
+     * cleaned <code>prefix</code>, the most important first.
+     */
+    public static List<String> getLocationsByPrefix(String prefix, int limit) {
+        TextNormalizer cleanPrefix = TextNormalizer.local().normalize(prefix);
+        if (cleanPrefix.length() == 0) {
+            return new LinkedList<>();
+        }
+        return toNames(search, search.getTopCompletions(cleanPrefix, limit));
+    }
+
+    /**
+     * Collects the names of OSM locations that prefix-match the query string with up to
+     * maxEdits typos, that is letters inserted, deleted or replaced.
+     * @param prefix Prefix string to be searched for.
+     * @param maxEdits The most typos to correct.
+     * @param limit The most names to collect.
+     * @return A <code>List</code> of the full names of the locations, those needing the fewest
+     * corrections first and then the most important.
+     */
+    public static List<String> getLocationsByFuzzyPrefix(String prefix, int maxEdits,
+            int limit) {
+        return getLocationsByFuzzyPrefix(search, prefix, maxEdits, limit);
+    }
+
+    private static List<String> getLocationsByFuzzyPrefix(SearchIndex index, String prefix,
+            int maxEdits, int limit) {
+        TextNormalizer cleanPrefix = TextNormalizer.local().normalize(prefix);
+        if (cleanPrefix.length() == 0) {
+            return new LinkedList<>();
+        }
+        return toNames(index, index.getFuzzyCompletions(cleanPrefix, maxEdits, limit));
+    }
+
+    /**
+     * Collects the names of locations to suggest for a search term: names with words starting
+     * like the term, the most important first, then if maxEdits is above 0 names starting like
+     * the term with up to maxEdits typos.
+     * @param index The search index to look the names up in.
+     * @param term The search term.
+     * @param limit The most names to collect.
+     * @param maxEdits The most typos to correct, or 0 for no fuzzy search.
+     * @return A <code>List</code> of the full names of the locations.
+     */
+    static List<String> getAutocompleteNames(SearchIndex index, String term, int limit,
+            int maxEdits) {
+        List<String> matches = getLocationsByWords(index, term, limit);
+        if (maxEdits > 0 && matches.size() < limit) {
+            LinkedHashSet<String> merged = new LinkedHashSet<>(matches);
+            for (String name : getLocationsByFuzzyPrefix(index, term, maxEdits, limit)) {
+                if (merged.size() == limit) {
+                    break;
+                }
+                merged.add(name);
+            }
+            matches = new ArrayList<>(merged);
+        }
+        return matches;
+    }
+
+    /**
+     * Collects the names of the most important OSM locations with every word of the query
+     * string, the last word possibly cut short. Words may come in any order and anywhere in the
+     * name, so "gilman" finds "725 Gilman" and "market gil" finds "Gilman Street Market".
+     * @param query The words to search for.
+     * @param limit The most names to collect.
+     * @return A <code>List</code> of the full names of the locations, the most important first.
+     */
+    public static List<String> getLocationsByWords(String query, int limit) {
+        return getLocationsByWords(search, query, limit);
+    }
+
+    private static List<String> getLocationsByWords(SearchIndex index, String query,
+            int limit) {
+        TextNormalizer words = TextNormalizer.local().normalize(query);
+        return toNames(index, index.searchWords(words, limit));
+    }
+
+    /**
+     * Maps places found in index to their full names.
+     */
+    private static List<String> toNames(SearchIndex index, int[] found) {
+        List<String> names = new ArrayList<>(found.length);
+        for (int place : found) {
+            names.add(index.places().name(place));
         }
-        return origList;
+        return names;
     }
 
     /**
@@ -633,40 +1746,39 @@ public class MapServer {
      * "name" -> String, The actual name of the node. <br>
      * "id" -> Number, The id of the node. <br>
      */
-    //TODO FIX FOR CLEANED NAMES
     public static List<Map<String, Object>> getLocations(String locationName) {
-        List<String> names = getLocationsByPrefix(locationName);
+        return getLocations(locationName, (ROOT_ULLON + ROOT_LRLON) / 2,
+                (ROOT_ULLAT + ROOT_LRLAT) / 2, Integer.MAX_VALUE);
+    }
 
-        List<Map<String, Object>> list = new LinkedList<>();
-        for (String name: names) {
-            Point p = graphDB.nameToPoint.get(name);
-            Long id = graphDB.findID.get(p);
+    /**
+     * Collect the locations that match a cleaned <code>locationName</code> nearest to a
+     * point, such as the center of the client's viewport, nearest first.
+     * @param locationName A full name of a location searched for.
+     * @param lon The longitude of the point.
+     * @param lat The latitude of the point.
+     * @param limit The most locations to collect.
+     * @return The locations, as in getLocations(String).
+     */
+    public static List<Map<String, Object>> getLocations(String locationName, double lon,
+            double lat, int limit) {
+        int place = search.find(TextNormalizer.local().normalize(locationName));
+        if (place < 0) {
+            return new LinkedList<>();
+        }
+        int[] nearest = new int[Math.min(limit, places.locationCount(place))];
+        int count = places.nearest(place, lon, lat, nearest.length, nearest);
 
+        List<Map<String, Object>> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int location = nearest[i];
             HashMap<String, Object> map = new HashMap<>();
-            map.put("lat", p.y);
-            map.put("lon", p.x);
-            map.put("name", name);
-            map.put("id", id);
-
-
+            map.put("lat", places.lat(location));
+            map.put("lon", places.lon(location));
+            map.put("name", places.name(place));
+            map.put("id", places.nodeId(location));
             list.add(map);
         }
         return list;
     }
-
-    /**
-     * Cleans a string.
-     * @param toClean
-     * @return the cleaned string.
-     */
-    private static String cleanString(String toClean) {
-        String clean = "";
-        char[] arr = toClean.toLowerCase().toCharArray();
-        for (char c: arr) {
-            if (c >= 97 && c <= 122 || c == ' ') {
-                clean += c + "";
-            }
-        }
-        return clean.trim();
-    }
 }
@@ -0,0 +1,111 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The metrics of the server, written in the Prometheus text format for /metrics. Metrics are
+ * registered once, when the parts of the server they measure are created, and recorded
+ * straight into the histograms and counters registered, so recording never looks anything up.
+ * Counts the server already keeps, such as cache hits, are registered as suppliers and read
+ * when the metrics are written.
+ */
+public class Metrics {
+    /* Every metric family by name, in order of registration. */
+    private final LinkedHashMap<String, Family> families = new LinkedHashMap<>();
+
+    /** The samples of one metric name, which share its help text and type. */
+    private static class Family {
+        final String help;
+        final String type;
+        final List<String> labels = new ArrayList<>();
+        /* A LatencyHistogram or a LongSupplier for each of the labels. */
+        final List<Object> samples = new ArrayList<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Registers a latency histogram.
+     * @param name the metric name, ending in _seconds.
+     * @param help describes the metric.
+     * @param labels the labels of this histogram, such as stage="encode", or empty.
+     */
+    public LatencyHistogram histogram(String name, String help, String labels) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        register(name, help, "histogram", labels, histogram);
+        return histogram;
+    }
+
+    /**
+     * Registers a latency histogram recorded elsewhere.
+     */
+    public void histogram(String name, String help, String labels, LatencyHistogram histogram) {
+        register(name, help, "histogram", labels, histogram);
+    }
+
+    /**
+     * Registers a counter recorded by the server.
+     * @param name the metric name, ending in _total.
+     * @param help describes the metric.
+     * @param labels the labels of this counter, or empty.
+     */
+    public LongAdder counter(String name, String help, String labels) {
+        LongAdder counter = new LongAdder();
+        register(name, help, "counter", labels, (LongSupplier) counter::sum);
+        return counter;
+    }
+
+    /**
+     * Registers a counter kept elsewhere, read when the metrics are written.
+     */
+    public void counter(String name, String help, String labels, LongSupplier value) {
+        register(name, help, "counter", labels, value);
+    }
+
+    /**
+     * Registers a value that goes up and down, read when the metrics are written.
+     */
+    public void gauge(String name, String help, String labels, LongSupplier value) {
+        register(name, help, "gauge", labels, value);
+    }
+
+    private synchronized void register(String name, String help, String type, String labels,
+            Object sample) {
+        Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already a " + family.type);
+        }
+        family.labels.add(labels);
+        family.samples.add(sample);
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format.
+     */
+    public synchronized String write() {
+        StringBuilder out = new StringBuilder();
+        families.forEach((name, family) -> {
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (int i = 0; i < family.samples.size(); i++) {
+                String labels = family.labels.get(i);
+                Object sample = family.samples.get(i);
+                if (sample instanceof LatencyHistogram) {
+                    ((LatencyHistogram) sample).write(out, name, labels);
+                } else {
+                    out.append(name);
+                    if (!labels.isEmpty()) {
+                        out.append('{').append(labels).append('}');
+                    }
+                    out.append(' ').append(((LongSupplier) sample).getAsLong()).append('\n');
+                }
+            }
+        });
+        return out.toString();
+    }
+}
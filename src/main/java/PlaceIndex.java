@@ -0,0 +1,329 @@
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * The named places of the map. A place is every node whose name cleans to the same string,
+ * so the many "Starbucks" nodes are one place with many locations. Places are numbered by
+ * importance, the most important first, and the locations of all places are kept place by
+ * place, with a spatial index over them.
+ * <p>The places are read in place from the search index file: the names to show, the node ids
+ * and coordinates of the locations and the spatial index are all memory-mapped, so the server
+ * neither gathers them from the OSM data nor holds them on the heap. PlaceIndex.Builder
+ * gathers them offline.
+ * <p>The places are written as the number of places, the number of locations and the byte
+ * length of the names, then the start of every name and of the locations of every place, the
+ * place of every location, the node ids, longitudes and latitudes of the locations, the names
+ * in UTF-8, and last the spatial index.
+ */
+public class PlaceIndex {
+    /* Below this many locations, a place's nearest locations are found by sorting them all
+     * rather than by searching the spatial index. */
+    private static final int SCAN_LIMIT = 64;
+    private static final int HEADER_BYTES = 3 * 4;
+
+    private final int placeCount;
+    /* The name of place p is the bytes nameStart[p] to nameStart[p + 1] - 1 of names. */
+    private final IntBuffer nameStart;
+    private final ByteBuffer names;
+    /* The locations of place p are locations placeStart[p] to placeStart[p + 1] - 1. */
+    private final IntBuffer placeStart;
+    private final IntBuffer locationPlace;
+    private final LongBuffer nodeIds;
+    private final DoubleBuffer lons;
+    private final DoubleBuffer lats;
+    private final PointGrid grid;
+
+    /**
+     * Reads the places written by Builder.write, in place.
+     * @param buffer the bytes written, which are kept, not copied.
+     */
+    PlaceIndex(ByteBuffer buffer) {
+        placeCount = buffer.getInt(0);
+        int locations = buffer.getInt(4);
+        int nameBytes = buffer.getInt(8);
+        int offset = HEADER_BYTES;
+        nameStart = buffer.slice(offset, 4 * (placeCount + 1)).asIntBuffer();
+        offset += 4 * (placeCount + 1);
+        placeStart = buffer.slice(offset, 4 * (placeCount + 1)).asIntBuffer();
+        offset += 4 * (placeCount + 1);
+        locationPlace = buffer.slice(offset, 4 * locations).asIntBuffer();
+        offset += 4 * locations;
+        nodeIds = buffer.slice(offset, 8 * locations).asLongBuffer();
+        offset += 8 * locations;
+        lons = buffer.slice(offset, 8 * locations).asDoubleBuffer();
+        offset += 8 * locations;
+        lats = buffer.slice(offset, 8 * locations).asDoubleBuffer();
+        offset += 8 * locations;
+        names = buffer.slice(offset, nameBytes);
+        offset += nameBytes;
+        grid = new PointGrid(lons, lats, buffer.slice(offset, buffer.limit() - offset));
+    }
+
+    /**
+     * Gathers the named nodes of the OSM data into places, to be written to the search index
+     * file.
+     */
+    public static class Builder {
+        /* The cleaned name and name to show of every place. */
+        private final String[] cleanNames;
+        private final String[] names;
+        private final int[] placeStart;
+        private final long[] nodeIds;
+        private final double[] lons;
+        private final double[] lats;
+        private final int[] locationPlace;
+
+        /**
+         * Gathers the named nodes of g into places.
+         * @param clean cleans a name; nodes whose name cleans to nothing are left out.
+         */
+        public Builder(GraphDB g, UnaryOperator<String> clean) {
+            HashMap<String, List<Long>> idsByCleanName = new HashMap<>();
+            HashMap<String, String> nameByCleanName = new HashMap<>();
+            for (Map.Entry<String, ArrayList<Long>> entry : g.nameToIds.entrySet()) {
+                String cleanName = clean.apply(entry.getKey());
+                if (cleanName.isEmpty()) {
+                    continue;
+                }
+                List<Long> ids = idsByCleanName.computeIfAbsent(cleanName, c -> new ArrayList<>());
+                /* The spelling with the most nodes is shown, or the first in order on a tie. */
+                String shown = nameByCleanName.get(cleanName);
+                int shownCount = shown == null ? 0 : g.nameToIds.get(shown).size();
+                if (entry.getValue().size() > shownCount || entry.getValue().size() == shownCount
+                        && entry.getKey().compareTo(shown) < 0) {
+                    nameByCleanName.put(cleanName, entry.getKey());
+                }
+                ids.addAll(entry.getValue());
+            }
+
+            /* Order the places by importance, then by name: sort the names, then sort keys of
+             * the importance, descending, and the rank of the name, both in parallel. */
+            String[] byName = idsByCleanName.keySet().toArray(new String[0]);
+            Arrays.parallelSort(byName);
+            int[] importance = new int[byName.length];
+            long[] keys = new long[byName.length];
+            for (int rank = 0; rank < byName.length; rank++) {
+                importance[rank] = importance(g, idsByCleanName.get(byName[rank]));
+                keys[rank] = (long) (Integer.MAX_VALUE - importance[rank]) << 32 | rank;
+            }
+            Arrays.parallelSort(keys);
+
+            int places = byName.length;
+            String[] order = new String[places];
+            cleanNames = order;
+            names = new String[places];
+            placeStart = new int[places + 1];
+            for (int p = 0; p < places; p++) {
+                int rank = (int) keys[p];
+                order[p] = byName[rank];
+                names[p] = nameByCleanName.get(order[p]);
+                placeStart[p + 1] = placeStart[p] + idsByCleanName.get(order[p]).size();
+            }
+            int locations = placeStart[places];
+            nodeIds = new long[locations];
+            lons = new double[locations];
+            lats = new double[locations];
+            locationPlace = new int[locations];
+            for (int p = 0; p < places; p++) {
+                int i = placeStart[p];
+                for (long id : idsByCleanName.get(order[p])) {
+                    Point point = g.namedPoints.get(id);
+                    nodeIds[i] = id;
+                    lons[i] = point.x;
+                    lats[i] = point.y;
+                    locationPlace[i] = p;
+                    i++;
+                }
+            }
+        }
+
+        /**
+         * Gets how important a place is: the number of nodes with its name, plus the number of
+         * roads meeting at those of them that are on roads.
+         */
+        private static int importance(GraphDB g, List<Long> ids) {
+            int importance = ids.size();
+            for (long id : ids) {
+                ArrayList<Connection> roads = g.con.get(id);
+                if (roads != null) {
+                    importance += roads.size();
+                }
+            }
+            return importance;
+        }
+
+        /** Gets the number of places. */
+        public int size() {
+            return names.length;
+        }
+
+        /** Gets the cleaned name of a place. */
+        public String cleanName(int place) {
+            return cleanNames[place];
+        }
+
+        /**
+         * Gets the bytes of the places, to be read back by PlaceIndex.
+         */
+        public byte[] toByteArray() {
+            int places = names.length;
+            int locations = nodeIds.length;
+            byte[][] utf8 = new byte[places][];
+            int nameBytes = 0;
+            for (int p = 0; p < places; p++) {
+                utf8[p] = names[p].getBytes(StandardCharsets.UTF_8);
+                nameBytes += utf8[p].length;
+            }
+            PointGrid grid = new PointGrid(lons, lats);
+            ByteBuffer out = ByteBuffer.allocate(HEADER_BYTES + 8 * (places + 1)
+                    + 28 * locations + nameBytes + grid.byteSize());
+            out.putInt(places).putInt(locations).putInt(nameBytes);
+            int nameStart = 0;
+            for (int p = 0; p < places; p++) {
+                out.putInt(nameStart);
+                nameStart += utf8[p].length;
+            }
+            out.putInt(nameStart);
+            for (int start : placeStart) {
+                out.putInt(start);
+            }
+            for (int place : locationPlace) {
+                out.putInt(place);
+            }
+            for (long id : nodeIds) {
+                out.putLong(id);
+            }
+            for (double lon : lons) {
+                out.putDouble(lon);
+            }
+            for (double lat : lats) {
+                out.putDouble(lat);
+            }
+            for (byte[] name : utf8) {
+                out.put(name);
+            }
+            grid.write(out);
+            return out.array();
+        }
+    }
+
+    /** Gets the number of places. */
+    public int size() {
+        return placeCount;
+    }
+
+    /** Gets the name to show for a place. */
+    public String name(int place) {
+        int start = nameStart.get(place);
+        byte[] utf8 = new byte[nameStart.get(place + 1) - start];
+        names.get(start, utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /** Gets the number of locations of a place. */
+    public int locationCount(int place) {
+        return placeStart.get(place + 1) - placeStart.get(place);
+    }
+
+    /** Gets the OSM node id of a location. */
+    public long nodeId(int location) {
+        return nodeIds.get(location);
+    }
+
+    /** Gets the longitude of a location. */
+    public double lon(int location) {
+        return lons.get(location);
+    }
+
+    /** Gets the latitude of a location. */
+    public double lat(int location) {
+        return lats.get(location);
+    }
+
+    /** Gets the place a location belongs to. */
+    public int place(int location) {
+        return locationPlace.get(location);
+    }
+
+    /** Gets the spatial index of all locations. */
+    PointGrid grid() {
+        return grid;
+    }
+
+    /**
+     * Finds the locations of a place nearest to (lon, lat), nearest first.
+     * @param n the most locations to find.
+     * @param out receives the locations; must hold at least n.
+     * @return the number of locations found.
+     */
+    public int nearest(int place, double lon, double lat, int n, int[] out) {
+        int first = placeStart.get(place);
+        int count = placeStart.get(place + 1) - first;
+        if (count > SCAN_LIMIT && n < count) {
+            return grid.nearest(lon, lat, n, location -> locationPlace.get(location) == place,
+                    out);
+        }
+        if (count > SCAN_LIMIT) {
+            return sortAll(first, count, lon, lat, out);
+        }
+        /* Few enough to sort them all by distance, by insertion. */
+        double[] distances = new double[count];
+        for (int k = 0; k < count; k++) {
+            int location = first + k;
+            double dx = lons.get(location) - lon;
+            double dy = lats.get(location) - lat;
+            double distance = dx * dx + dy * dy;
+            int at = k;
+            while (at > 0 && distances[at - 1] > distance) {
+                distances[at] = distances[at - 1];
+                if (at < n) {
+                    out[at] = out[at - 1];
+                }
+                at--;
+            }
+            distances[at] = distance;
+            if (at < n) {
+                out[at] = location;
+            }
+        }
+        return Math.min(n, count);
+    }
+
+    /**
+     * Sorts all count locations from first by distance to (lon, lat), into out. Each is keyed
+     * by the bits of its distance as a float, which order like the distance does, above its
+     * offset, and the keys sorted; the few locations whose distances differ by less than a
+     * float can tell apart are then put in exact order, by insertion.
+     * @return count.
+     */
+    private int sortAll(int first, int count, double lon, double lat, int[] out) {
+        double[] distances = new double[count];
+        long[] keys = new long[count];
+        for (int k = 0; k < count; k++) {
+            double dx = lons.get(first + k) - lon;
+            double dy = lats.get(first + k) - lat;
+            distances[k] = dx * dx + dy * dy;
+            keys[k] = (long) Float.floatToIntBits((float) distances[k]) << 32 | k;
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < count; i++) {
+            int k = (int) keys[i];
+            int at = i;
+            while (at > 0 && distances[out[at - 1] - first] > distances[k]) {
+                out[at] = out[at - 1];
+                at--;
+            }
+            out[at] = first + k;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,193 @@
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.function.IntPredicate;
+
+/**
+ * A spatial index of points, numbered from 0, for finding the points nearest to a location.
+ * The bounding box of the points is divided into a uniform grid of cells, and the points are
+ * listed cell by cell in one array. Nearest points are found by searching rings of cells
+ * around the location, outwards, until no closer point can remain.
+ * <p>A grid can be written to a buffer and read back in place, e.g. from a memory-mapped
+ * file, without building it again.
+ */
+public class PointGrid {
+    /* The bytes of the bounds, cell size and number of cells written before the cells. */
+    private static final int HEADER_BYTES = 4 * 8 + 4;
+
+    private final DoubleBuffer xs;
+    private final DoubleBuffer ys;
+    private final double minX;
+    private final double minY;
+    private final double cellWidth;
+    private final double cellHeight;
+    private final int cells;
+    /* The points of cell c are cellPoints[cellStart[c]] to cellPoints[cellStart[c + 1] - 1]. */
+    private final IntBuffer cellStart;
+    private final IntBuffer cellPoints;
+
+    /**
+     * Indexes the points (xs[i], ys[i]). The arrays are kept, not copied.
+     */
+    public PointGrid(double[] xs, double[] ys) {
+        this.xs = DoubleBuffer.wrap(xs);
+        this.ys = DoubleBuffer.wrap(ys);
+        double lowX = Double.POSITIVE_INFINITY;
+        double lowY = Double.POSITIVE_INFINITY;
+        double highX = Double.NEGATIVE_INFINITY;
+        double highY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < xs.length; i++) {
+            lowX = Math.min(lowX, xs[i]);
+            lowY = Math.min(lowY, ys[i]);
+            highX = Math.max(highX, xs[i]);
+            highY = Math.max(highY, ys[i]);
+        }
+        if (xs.length == 0) {
+            lowX = 0;
+            lowY = 0;
+            highX = 1;
+            highY = 1;
+        }
+        /* About four points to a cell. */
+        cells = Math.max(1, Math.min(1024, (int) Math.ceil(Math.sqrt(xs.length / 4.0))));
+        minX = lowX;
+        minY = lowY;
+        cellWidth = Math.max(highX - lowX, Double.MIN_NORMAL) / cells;
+        cellHeight = Math.max(highY - lowY, Double.MIN_NORMAL) / cells;
+
+        int[] starts = new int[cells * cells + 1];
+        for (int i = 0; i < xs.length; i++) {
+            starts[cell(i) + 1]++;
+        }
+        for (int c = 0; c < cells * cells; c++) {
+            starts[c + 1] += starts[c];
+        }
+        int[] points = new int[xs.length];
+        int[] filled = new int[cells * cells];
+        for (int i = 0; i < xs.length; i++) {
+            int c = cell(i);
+            points[starts[c] + filled[c]++] = i;
+        }
+        cellStart = IntBuffer.wrap(starts);
+        cellPoints = IntBuffer.wrap(points);
+    }
+
+    /**
+     * Reads a grid of the points (xs[i], ys[i]) written by write, in place.
+     * @param buffer the bytes written, which are kept, not copied.
+     */
+    public PointGrid(DoubleBuffer xs, DoubleBuffer ys, ByteBuffer buffer) {
+        this.xs = xs;
+        this.ys = ys;
+        minX = buffer.getDouble(0);
+        minY = buffer.getDouble(8);
+        cellWidth = buffer.getDouble(16);
+        cellHeight = buffer.getDouble(24);
+        cells = buffer.getInt(32);
+        int starts = 4 * (cells * cells + 1);
+        cellStart = buffer.slice(HEADER_BYTES, starts).asIntBuffer();
+        cellPoints = buffer.slice(HEADER_BYTES + starts, 4 * xs.limit()).asIntBuffer();
+    }
+
+    /** Gets the number of bytes write writes. */
+    public int byteSize() {
+        return HEADER_BYTES + 4 * (cellStart.limit() + cellPoints.limit());
+    }
+
+    /**
+     * Writes the grid, but not the points, to out, to be read back with the points.
+     */
+    public void write(ByteBuffer out) {
+        out.putDouble(minX).putDouble(minY).putDouble(cellWidth).putDouble(cellHeight)
+                .putInt(cells);
+        for (int c = 0; c < cellStart.limit(); c++) {
+            out.putInt(cellStart.get(c));
+        }
+        for (int k = 0; k < cellPoints.limit(); k++) {
+            out.putInt(cellPoints.get(k));
+        }
+    }
+
+    /** Gets the number of points. */
+    public int size() {
+        return xs.limit();
+    }
+
+    /**
+     * Gets the point nearest to (x, y).
+     * @return the point, or -1 if there are no points.
+     */
+    public int nearest(double x, double y) {
+        int[] nearest = new int[1];
+        return nearest(x, y, 1, null, nearest) == 1 ? nearest[0] : -1;
+    }
+
+    /**
+     * Finds the n accepted points nearest to (x, y), nearest first.
+     * @param accept tells which points may be found, or null to accept all of them.
+     * @param out receives the points found; must hold at least n.
+     * @return the number of points found, less than n only if fewer points are accepted.
+     */
+    public int nearest(double x, double y, int n, IntPredicate accept, int[] out) {
+        if (n <= 0) {
+            return 0;
+        }
+        double[] distances = new double[n];
+        int found = 0;
+        int cx = column(x);
+        int cy = row(y);
+        double ringWidth = Math.min(cellWidth, cellHeight);
+        for (int ring = 0; ring < cells; ring++) {
+            for (int r = cy - ring; r <= cy + ring; r++) {
+                if (r < 0 || r >= cells) {
+                    continue;
+                }
+                /* Inner rows of the ring only have cells at its left and right edges. */
+                int step = r == cy - ring || r == cy + ring ? 1 : Math.max(1, 2 * ring);
+                for (int c = cx - ring; c <= cx + ring; c += step) {
+                    if (c < 0 || c >= cells) {
+                        continue;
+                    }
+                    int cell = r * cells + c;
+                    for (int k = cellStart.get(cell); k < cellStart.get(cell + 1); k++) {
+                        int i = cellPoints.get(k);
+                        double dx = xs.get(i) - x;
+                        double dy = ys.get(i) - y;
+                        double distance = dx * dx + dy * dy;
+                        if (found == n && distance >= distances[n - 1]
+                                || accept != null && !accept.test(i)) {
+                            continue;
+                        }
+                        /* Insert i in order of distance, dropping the farthest if full. */
+                        int at = found < n ? found++ : n - 1;
+                        while (at > 0 && distances[at - 1] > distance) {
+                            distances[at] = distances[at - 1];
+                            out[at] = out[at - 1];
+                            at--;
+                        }
+                        distances[at] = distance;
+                        out[at] = i;
+                    }
+                }
+            }
+            /* Points in further rings are at least ring cells away. */
+            double bound = ring * ringWidth;
+            if (found == n && bound * bound >= distances[n - 1]) {
+                break;
+            }
+        }
+        return found;
+    }
+
+    private int cell(int i) {
+        return row(ys.get(i)) * cells + column(xs.get(i));
+    }
+
+    private int column(double x) {
+        return Math.max(0, Math.min(cells - 1, (int) Math.floor((x - minX) / cellWidth)));
+    }
+
+    private int row(double y) {
+        return Math.max(0, Math.min(cells - 1, (int) Math.floor((y - minY) / cellHeight)));
+    }
+}
@@ -7,7 +7,8 @@ import java.awt.image.BufferedImage;
 
 public class QNode {
     PointSet set;
-    BufferedImage image;
+    /* Written by whichever thread decodes the tile first, read by every request. */
+    volatile BufferedImage image;
     String name;
 
     QNode one;
@@ -3,6 +3,11 @@ import java.awt.image.BufferedImage;
 public class QuadTree {
     public static final double ROOT_ULLAT = 37.892195547244356, ROOT_ULLON = -122.2998046875,
             ROOT_LRLAT = 37.82280243352756, ROOT_LRLON = -122.2119140625;
+    /**
+     * The depth of the deepest tiles, 7 unless the bearmaps.maxDepth system property says
+     * otherwise. Deeper tiles can be generated with TilePyramidBuilder.
+     */
+    public static final int MAX_DEPTH = Integer.getInteger("bearmaps.maxDepth", 7);
     QNode head;
 
 
@@ -53,6 +58,67 @@ public class QuadTree {
         return current;
     }
 
+    /**
+     * Gets the name of the tile in column x and row y of the given depth, counting from the
+     * upper left tile. At every level the next digit is 1, 2, 3 or 4 for the upper left, upper
+     * right, lower left or lower right quadrant, and the single tile at depth 0 is the root.
+     * @param depth the depth of the tile, 0 for the root.
+     * @param x the column of the tile, from 0 to 2^depth - 1.
+     * @param y the row of the tile, from 0 to 2^depth - 1.
+     * @return the name of the tile, without the .png ending.
+     */
+    public static String tileName(int depth, int x, int y) {
+        if (depth == 0) {
+            return "root";
+        }
+        char[] name = new char[depth];
+        for (int i = 0; i < depth; i++) {
+            int bit = depth - 1 - i;
+            name[i] = (char) ('1' + ((x >> bit) & 1) + 2 * ((y >> bit) & 1));
+        }
+        return new String(name);
+    }
+
+    /**
+     * Gets the depth of the tile <name>, i.e. the number of quadrant digits in it.
+     * @param name the tile name, with or without the .png ending.
+     */
+    public static int tileDepth(String name) {
+        String stripped = stripEnding(name);
+        return stripped.equals("root") ? 0 : stripped.length();
+    }
+
+    /**
+     * Gets the column of the tile <name> among the tiles of its depth.
+     * @param name the tile name, with or without the .png ending.
+     * @see #tileName(int, int, int)
+     */
+    public static int tileX(String name) {
+        int x = 0;
+        for (int i = 0; i < tileDepth(name); i++) {
+            x = 2 * x + (name.charAt(i) - '1') % 2;
+        }
+        return x;
+    }
+
+    /**
+     * Gets the row of the tile <name> among the tiles of its depth.
+     * @param name the tile name, with or without the .png ending.
+     * @see #tileName(int, int, int)
+     */
+    public static int tileY(String name) {
+        int y = 0;
+        for (int i = 0; i < tileDepth(name); i++) {
+            y = 2 * y + (name.charAt(i) - '1') / 2;
+        }
+        return y;
+    }
+
+    private static String stripEnding(String name) {
+        int dot = name.indexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
     public void initialize() {
         initializeHelper(head, ROOT_ULLAT, ROOT_ULLON, ROOT_LRLAT, ROOT_LRLON, 1);
     }
@@ -84,7 +150,7 @@ public class QuadTree {
         Point lowerMid = new Point(ullon + deltaLON, lrlat);
         Point lowerRight = new Point(lrlon, lrlat);
 
-        if (count <= 7) {
+        if (count <= MAX_DEPTH) {
             node.one.set = new PointSet(upperLeft, middle);
             node.two.set = new PointSet(upperMid, midRight);
             node.three.set = new PointSet(midLeft, lowerMid);
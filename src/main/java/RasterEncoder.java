@@ -0,0 +1,131 @@
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.EnumMap;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Encodes rastered images. Each thread keeps one ImageWriter per format and reuses it, rather
+ * than looking up a new writer through ImageIO for every image.
+ */
+public class RasterEncoder {
+
+    /** The formats a raster can be encoded as. */
+    enum Format {
+        JPG("jpg", "image/jpeg", true),
+        PNG("png", "image/png", false),
+        WEBP("webp", "image/webp", true);
+
+        final String name;
+        final String mimeType;
+        /** Whether the compression quality changes the encoded pixels. */
+        final boolean lossy;
+
+        Format(String name, String mimeType, boolean lossy) {
+            this.name = name;
+            this.mimeType = mimeType;
+            this.lossy = lossy;
+        }
+
+        /**
+         * Gets the format called name, ignoring case. "jpeg" is accepted for JPG.
+         * @return the format, or null if there is no such format.
+         */
+        static Format fromName(String name) {
+            if (name.equalsIgnoreCase("jpeg")) {
+                return JPG;
+            }
+            for (Format format : values()) {
+                if (format.name.equalsIgnoreCase(name)) {
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final ThreadLocal<EnumMap<Format, ImageWriter>> WRITERS =
+            ThreadLocal.withInitial(() -> new EnumMap<>(Format.class));
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Tells whether an encoder for format is installed. There is no WebP writer in the JDK, so
+     * WebP is only available when a pure-Java WebP ImageIO plugin is on the classpath.
+     */
+    static boolean isAvailable(Format format) {
+        return ImageIO.getImageWritersByFormatName(format.name).hasNext();
+    }
+
+    /**
+     * Writes im to os.
+     * @param im Image to be written.
+     * @param format the format to encode as.
+     * @param quality compression quality between 0 and 1, only used by lossy formats.
+     * @param os Stream to be written to. It is not closed.
+     * @throws IOException if the image could not be encoded or written.
+     */
+    static void encode(BufferedImage im, Format format, float quality, OutputStream os)
+            throws IOException {
+        MapEvents.RasterEncode event = new MapEvents.RasterEncode();
+        event.begin();
+        ImageWriter writer = getWriter(format);
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (format.lossy && param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            String[] types = param.getCompressionTypes();
+            if (types != null && param.getCompressionType() == null) {
+                param.setCompressionType(types[0]);
+            }
+            param.setCompressionQuality(quality);
+        }
+        long bytes;
+        try (MemoryCacheImageOutputStream ios = new MemoryCacheImageOutputStream(os)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(im, null, null), param);
+            bytes = ios.getStreamPosition();
+        } finally {
+            writer.reset();
+        }
+        if (event.shouldCommit()) {
+            event.format = format.name;
+            event.quality = quality;
+            event.width = im.getWidth();
+            event.height = im.getHeight();
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * Gets this thread's writer for format, creating it the first time.
+     */
+    private static ImageWriter getWriter(Format format) throws IOException {
+        EnumMap<Format, ImageWriter> writers = WRITERS.get();
+        ImageWriter writer = writers.get(format);
+        if (writer == null) {
+            Iterator<ImageWriter> found = ImageIO.getImageWritersByFormatName(format.name);
+            if (!found.hasNext()) {
+                throw new IOException("No encoder installed for " + format.name);
+            }
+            writer = found.next();
+            writers.put(format, writer);
+        }
+        return writer;
+    }
+
+    /**
+     * Gets the CPU time used by the current thread so far, for timing encodes.
+     * @return the CPU time in nanoseconds.
+     */
+    static long threadCpuNanos() {
+        return THREADS.getCurrentThreadCpuTime();
+    }
+}
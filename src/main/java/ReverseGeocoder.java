@@ -0,0 +1,71 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Answers "what is here": the named place and the road nearest to a location, found with the
+ * spatial indexes of the place locations and of the road segments. Lookups only read the
+ * indexes, so batches of them run in parallel.
+ */
+public class ReverseGeocoder {
+    private final PlaceIndex places;
+    private final EdgeGrid roads;
+
+    public ReverseGeocoder(PlaceIndex places, EdgeGrid roads) {
+        this.places = places;
+        this.roads = roads;
+    }
+
+    /**
+     * Looks up what is nearest to (lon, lat).
+     * @return a map of parameters for the Json response: <br>
+     * "lat" -> Number, "lon" -> Number, the location looked up. <br>
+     * "place" -> the nearest named location, as a map of "name", "id", "lat" and "lon", if any.
+     * <br>
+     * "road" -> the nearest road, as a map of "name" if it has one, "from" and "to", the ids of
+     * the nodes at the ends of its nearest segment, and "lat" and "lon", the point of the road
+     * nearest to the location, if any.
+     */
+    public Map<String, Object> lookup(double lon, double lat) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("lat", lat);
+        result.put("lon", lon);
+        int location = places.grid().nearest(lon, lat);
+        if (location >= 0) {
+            Map<String, Object> place = new HashMap<>();
+            place.put("name", places.name(places.place(location)));
+            place.put("id", places.nodeId(location));
+            place.put("lat", places.lat(location));
+            place.put("lon", places.lon(location));
+            result.put("place", place);
+        }
+        double[] point = new double[2];
+        int segment = roads.nearest(lon, lat, point);
+        if (segment >= 0) {
+            Map<String, Object> road = new HashMap<>();
+            if (roads.names[segment] != null) {
+                road.put("name", roads.names[segment]);
+            }
+            road.put("from", roads.from[segment]);
+            road.put("to", roads.to[segment]);
+            road.put("lat", point[1]);
+            road.put("lon", point[0]);
+            result.put("road", road);
+        }
+        return result;
+    }
+
+    /**
+     * Looks up every location of a batch, in parallel on the ForkJoinPool it is called from,
+     * or the common pool if none.
+     * @param locations the locations, each as {lat, lon}.
+     * @return the results of lookup(lon, lat), in the order of the locations.
+     */
+    public List<Map<String, Object>> lookupAll(double[][] locations) {
+        return IntStream.range(0, locations.length).parallel()
+                .mapToObj(i -> lookup(locations[i][1], locations[i][0]))
+                .collect(Collectors.toList());
+    }
+}
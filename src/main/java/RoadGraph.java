@@ -0,0 +1,122 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The roads of a GraphDB packed for routing. Nodes are numbered from 0 in order of their ids,
+ * and the connections of node i are edgeTarget[edgeStart[i]] to edgeTarget[edgeStart[i + 1] - 1],
+ * so a search reads primitive arrays rather than maps of boxed ids. Nodes are also indexed by
+ * where they are, so snapping a location to its nearest node does not scan them all.
+ * <p>The graph is never changed once built, so any number of threads may route on it, each
+ * with its own RouteSearch from search().
+ */
+public class RoadGraph {
+    /* The id and location of every node, in order of id. */
+    private final long[] ids;
+    private final double[] lons;
+    private final double[] lats;
+    /* The connections of every node, and their lengths. */
+    final int[] edgeStart;
+    final int[] edgeTarget;
+    final double[] edgeLength;
+    private final PointGrid grid;
+    private final ThreadLocal<RouteSearch> searches;
+
+    /**
+     * Packs the nodes and connections of g.
+     */
+    public RoadGraph(GraphDB g) {
+        int n = g.NodeDB.size();
+        ids = new long[n];
+        int i = 0;
+        for (Long id : g.NodeDB.keySet()) {
+            ids[i++] = id;
+        }
+        Arrays.sort(ids);
+        lons = new double[n];
+        lats = new double[n];
+        for (i = 0; i < n; i++) {
+            Point p = g.NodeDB.get(ids[i]).getP();
+            lons[i] = p.x;
+            lats[i] = p.y;
+        }
+        /* Count the connections of every node, then fill them in. */
+        edgeStart = new int[n + 1];
+        for (i = 0; i < n; i++) {
+            edgeStart[i + 1] = edgeStart[i] + connectionCount(g.con.get(ids[i]));
+        }
+        edgeTarget = new int[edgeStart[n]];
+        edgeLength = new double[edgeStart[n]];
+        for (i = 0; i < n; i++) {
+            ArrayList<Connection> connections = g.con.get(ids[i]);
+            int e = edgeStart[i];
+            if (connections != null) {
+                for (Connection c : connections) {
+                    int target = index(c.getIdTo());
+                    if (target >= 0) {
+                        edgeTarget[e] = target;
+                        edgeLength[e++] = c.getDistance();
+                    }
+                }
+            }
+        }
+        grid = new PointGrid(lons, lats);
+        searches = ThreadLocal.withInitial(() -> new RouteSearch(this));
+    }
+
+    /* Counts the connections that lead to nodes of the graph. */
+    private int connectionCount(ArrayList<Connection> connections) {
+        int count = 0;
+        if (connections != null) {
+            for (Connection c : connections) {
+                if (Arrays.binarySearch(ids, c.getIdTo()) >= 0) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /** Gets the number of nodes. */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Gets the number of the node with the given id.
+     * @return the node, or -1 if there is no such node.
+     */
+    public int index(long id) {
+        int i = Arrays.binarySearch(ids, id);
+        return i >= 0 ? i : -1;
+    }
+
+    /** Gets the id of node i. */
+    public long id(int i) {
+        return ids[i];
+    }
+
+    /** Gets the longitude of node i. */
+    public double lon(int i) {
+        return lons[i];
+    }
+
+    /** Gets the latitude of node i. */
+    public double lat(int i) {
+        return lats[i];
+    }
+
+    /**
+     * Gets the node nearest to (lon, lat), by euclidean distance.
+     * @return the node, or -1 if there are no nodes.
+     */
+    public int nearest(double lon, double lat) {
+        return grid.nearest(lon, lat);
+    }
+
+    /**
+     * Gets the route search of this thread, whose arrays are reused by every search it runs.
+     */
+    public RouteSearch search() {
+        return searches.get();
+    }
+}
@@ -0,0 +1,174 @@
+import java.util.Arrays;
+
+/**
+ * Finds shortest routes on a RoadGraph with A*, guided by the straight line distance to the
+ * destination. A search keeps its distances, predecessors and heap between routes, and tells
+ * which entries belong to the current route by a stamp rather than clearing them, so routing
+ * allocates nothing but the route itself.
+ * <p>A search is not thread-safe; every thread gets its own from RoadGraph.search().
+ */
+public class RouteSearch {
+    private final RoadGraph graph;
+    /* The best known distance to every node and the node it is reached from, valid where
+     * reached[node] is the current stamp. */
+    private final double[] distance;
+    private final int[] previous;
+    private final int[] reached;
+    /* Nodes whose distance is final, where settled[node] is the current stamp. */
+    private final int[] settled;
+    private int stamp;
+    /* A binary min-heap of nodes by distance plus estimate. Nodes are pushed again rather than
+     * moved up when their distance improves, and the stale entries skipped when popped. */
+    private double[] heapKeys = new double[64];
+    private int[] heapNodes = new int[64];
+    private int heapSize;
+    private int settledCount;
+    private double routeDistance;
+
+    RouteSearch(RoadGraph graph) {
+        this.graph = graph;
+        int n = graph.size();
+        distance = new double[n];
+        previous = new int[n];
+        reached = new int[n];
+        settled = new int[n];
+    }
+
+    /**
+     * Finds the shortest route from node start to node end.
+     * @return the nodes of the route, from start to end, or an empty array if end cannot be
+     * reached from start.
+     */
+    public int[] route(int start, int end) {
+        MapEvents.RouteSearch event = new MapEvents.RouteSearch();
+        event.begin();
+        int[] route = search(start, end);
+        if (event.shouldCommit()) {
+            event.startId = graph.id(start);
+            event.endId = graph.id(end);
+            event.settled = settledCount;
+            event.routeNodes = route.length;
+            event.distance = route.length > 0 ? routeDistance : -1;
+            event.commit();
+        }
+        return route;
+    }
+
+    private int[] search(int start, int end) {
+        nextStamp();
+        heapSize = 0;
+        settledCount = 0;
+        routeDistance = Double.POSITIVE_INFINITY;
+        double endLon = graph.lon(end);
+        double endLat = graph.lat(end);
+        distance[start] = 0;
+        previous[start] = -1;
+        reached[start] = stamp;
+        push(estimate(start, endLon, endLat), start);
+        while (heapSize > 0) {
+            int node = pop();
+            if (settled[node] == stamp) {
+                continue;
+            }
+            settled[node] = stamp;
+            settledCount++;
+            if (node == end) {
+                routeDistance = distance[end];
+                return path(end);
+            }
+            for (int e = graph.edgeStart[node]; e < graph.edgeStart[node + 1]; e++) {
+                int target = graph.edgeTarget[e];
+                double d = distance[node] + graph.edgeLength[e];
+                if (settled[target] != stamp
+                        && (reached[target] != stamp || d < distance[target])) {
+                    distance[target] = d;
+                    previous[target] = node;
+                    reached[target] = stamp;
+                    push(d + estimate(target, endLon, endLat), target);
+                }
+            }
+        }
+        return new int[0];
+    }
+
+    /** Gets the number of nodes settled by the last search. */
+    public int settled() {
+        return settledCount;
+    }
+
+    /** Gets the length of the last route found, or infinity if there was none. */
+    public double distance() {
+        return routeDistance;
+    }
+
+    private double estimate(int node, double endLon, double endLat) {
+        double dx = graph.lon(node) - endLon;
+        double dy = graph.lat(node) - endLat;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private int[] path(int end) {
+        int length = 0;
+        for (int node = end; node >= 0; node = previous[node]) {
+            length++;
+        }
+        int[] path = new int[length];
+        for (int node = end; node >= 0; node = previous[node]) {
+            path[--length] = node;
+        }
+        return path;
+    }
+
+    private void nextStamp() {
+        if (stamp == Integer.MAX_VALUE) {
+            Arrays.fill(reached, 0);
+            Arrays.fill(settled, 0);
+            stamp = 0;
+        }
+        stamp++;
+    }
+
+    private void push(double key, int node) {
+        if (heapSize == heapKeys.length) {
+            heapKeys = Arrays.copyOf(heapKeys, 2 * heapSize);
+            heapNodes = Arrays.copyOf(heapNodes, 2 * heapSize);
+        }
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heapKeys[parent] <= key) {
+                break;
+            }
+            heapKeys[i] = heapKeys[parent];
+            heapNodes[i] = heapNodes[parent];
+            i = parent;
+        }
+        heapKeys[i] = key;
+        heapNodes[i] = node;
+    }
+
+    private int pop() {
+        int top = heapNodes[0];
+        double key = heapKeys[--heapSize];
+        int node = heapNodes[heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child]) {
+                child++;
+            }
+            if (key <= heapKeys[child]) {
+                break;
+            }
+            heapKeys[i] = heapKeys[child];
+            heapNodes[i] = heapNodes[child];
+            i = child;
+        }
+        heapKeys[i] = key;
+        heapNodes[i] = node;
+        return top;
+    }
+}
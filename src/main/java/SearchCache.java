@@ -0,0 +1,48 @@
+import java.io.IOException;
+
+/**
+ * A cache of autocomplete responses, already serialized, by normalized term and search
+ * options. Autocomplete traffic is mostly the same short prefixes over and over, so most
+ * requests are answered by a lookup. Concurrent misses on the same key are coalesced, so only
+ * one of them searches. The responses hold at most a fixed number of bytes, least recently
+ * used first out.
+ * <p>The search index is loaded once at startup and never replaced, so cached responses stay
+ * valid for the life of the server.
+ */
+public class SearchCache {
+    private final ByteLruCache responses;
+    private final SingleFlight<byte[]> flights = new SingleFlight<>();
+
+    /**
+     * @param budget the most bytes of responses to hold at once.
+     */
+    public SearchCache(long budget) {
+        responses = new ByteLruCache(budget);
+    }
+
+    /**
+     * Gets the response cached under key, or computes and caches it.
+     * @param compute computes the response, at most once at a time per key.
+     */
+    public byte[] get(String key, SingleFlight.Loader<byte[]> compute) throws IOException {
+        byte[] response = responses.get(key);
+        if (response != null) {
+            return response;
+        }
+        return flights.get(key, () -> {
+            byte[] computed = compute.load();
+            responses.put(key, computed);
+            return computed;
+        });
+    }
+
+    /** Gets the counts and size of the cached responses. */
+    public ByteLruCache responses() {
+        return responses;
+    }
+
+    /** Gets the counts of searches run and coalesced. */
+    public SingleFlight<byte[]> flights() {
+        return flights;
+    }
+}
@@ -0,0 +1,438 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The search index of the place names, read in place from a memory-mapped file so that it
+ * costs nothing to load and lives outside the Java heap. The file also holds the places
+ * themselves, read in place by PlaceIndex. SearchIndexBuilder writes the file offline, and
+ * stamps it with the size and modification time of the OSM file it was built from; the server
+ * refuses to start with a file that is missing or was built from another OSM file.
+ * <p>Names and queries are normalized by TextNormalizer, whose words are the tokens searched.
+ * <p>The index holds two Fsts. The first maps every cleaned place name to its place number.
+ * Places are numbered most important first, so the smallest outputs under a prefix are its
+ * best completions. The second maps every word, or token, of the place names to its number in
+ * sorted order, which is also the number of its posting list: the places having the token, in
+ * increasing order, as varint deltas.
+ * <p>The file is a header: MAGIC and VERSION as ints, the size and modification time of the
+ * OSM file as longs, then as ints the number of places, the number of tokens, the start state
+ * and byte length of each Fst, and the byte length of the places. Then come the two Fsts, the
+ * places, the start of every posting list as an int, one more for the end of the last list,
+ * and the posting lists.
+ */
+public class SearchIndex {
+    private static final int MAGIC = 0x424D5349;
+    private static final int VERSION = 3;
+    private static final int HEADER_BYTES = 2 * 4 + 2 * 8 + 7 * 4;
+
+    private final long osmLength;
+    private final long osmModified;
+    private final int placeCount;
+    private final int tokenCount;
+    private final Fst names;
+    private final Fst tokens;
+    private final PlaceIndex places;
+    private final ByteBuffer postingStarts;
+    private final ByteBuffer postings;
+
+    /**
+     * Reads an index from the bytes of an index file.
+     * @throws IOException if the bytes are not an index file of this version.
+     */
+    SearchIndex(ByteBuffer buffer) throws IOException {
+        if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a search index of version " + VERSION);
+        }
+        osmLength = buffer.getLong(8);
+        osmModified = buffer.getLong(16);
+        placeCount = buffer.getInt(24);
+        tokenCount = buffer.getInt(28);
+        int namesRoot = buffer.getInt(32);
+        int namesLength = buffer.getInt(36);
+        int tokensRoot = buffer.getInt(40);
+        int tokensLength = buffer.getInt(44);
+        int placesLength = buffer.getInt(48);
+        int offset = HEADER_BYTES;
+        names = new Fst(buffer.slice(offset, namesLength), namesRoot);
+        offset += namesLength;
+        tokens = new Fst(buffer.slice(offset, tokensLength), tokensRoot);
+        offset += tokensLength;
+        places = new PlaceIndex(buffer.slice(offset, placesLength));
+        offset += placesLength;
+        postingStarts = buffer.slice(offset, 4 * (tokenCount + 1));
+        offset += 4 * (tokenCount + 1);
+        postings = buffer.slice(offset, buffer.limit() - offset);
+    }
+
+    /**
+     * Memory-maps the index file built from the OSM file osm.
+     * @throws IllegalStateException if the index file cannot be read, or was built from an
+     * OSM file of another size or modification time.
+     */
+    public static SearchIndex load(File file, File osm) {
+        SearchIndex index;
+        try {
+            index = open(file);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read " + file + " (" + e.getMessage()
+                    + "); build it with SearchIndexBuilder.", e);
+        }
+        if (index.osmLength != osm.length() || index.osmModified != osm.lastModified()) {
+            throw new IllegalStateException(file + " was not built from the current " + osm
+                    + "; rebuild it with SearchIndexBuilder.");
+        }
+        return index;
+    }
+
+    /**
+     * Memory-maps an index file.
+     */
+    public static SearchIndex open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            /* The mapping stays valid after the channel is closed. */
+            return new SearchIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Writes the index of places to file.
+     * @param osmLength the size of the OSM file the places were read from.
+     * @param osmModified the modification time of the OSM file, when it was read.
+     * @return the number of bytes written.
+     */
+    public static int write(File file, PlaceIndex.Builder places, long osmLength,
+            long osmModified) throws IOException {
+        byte[] bytes = build(places, osmLength, osmModified);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+        return bytes.length;
+    }
+
+    /**
+     * Builds the bytes of the index file of places. The cleaned names and the distinct tokens
+     * are sorted in parallel, and each Fst then built in one pass over its sorted strings,
+     * sharing their common suffixes as it goes. The posting lists are laid out by counting.
+     */
+    static byte[] build(PlaceIndex.Builder places, long osmLength, long osmModified) {
+        Integer[] byName = new Integer[places.size()];
+        for (int place = 0; place < places.size(); place++) {
+            byName[place] = place;
+        }
+        Arrays.parallelSort(byName, Comparator.comparing(places::cleanName));
+        Fst.Builder nameBuilder = new Fst.Builder();
+        for (int place : byName) {
+            nameBuilder.add(places.cleanName(place), place);
+        }
+        int namesRoot = nameBuilder.finish();
+        byte[] nameStates = nameBuilder.toByteArray();
+
+        /* Number the distinct tokens as they come, noting the token of every word of every
+         * place: the words of place p are words wordStart[p] to wordStart[p + 1] - 1. */
+        HashMap<String, Integer> tokenIds = new HashMap<>();
+        int[] wordStart = new int[places.size() + 1];
+        int[] wordTokens = new int[places.size()];
+        int words = 0;
+        for (int place = 0; place < places.size(); place++) {
+            for (String word : places.cleanName(place).split(" ")) {
+                if (words == wordTokens.length) {
+                    wordTokens = Arrays.copyOf(wordTokens, Math.max(16, 2 * words));
+                }
+                Integer id = tokenIds.putIfAbsent(word, tokenIds.size());
+                wordTokens[words++] = id == null ? tokenIds.size() - 1 : id;
+            }
+            wordStart[place + 1] = words;
+        }
+        String[] sortedTokens = tokenIds.keySet().toArray(new String[0]);
+        Arrays.parallelSort(sortedTokens);
+        int tokenCount = sortedTokens.length;
+        int[] rank = new int[tokenCount];
+        for (int t = 0; t < tokenCount; t++) {
+            rank[tokenIds.get(sortedTokens[t])] = t;
+        }
+
+        /* Lay out the posting lists by counting the places of every token, then fill them in
+         * order of place, so each comes out sorted. A token twice in one name counts once. */
+        int[] listStart = new int[tokenCount + 1];
+        int[] lastPlace = new int[tokenCount];
+        Arrays.fill(lastPlace, -1);
+        for (int place = 0; place < places.size(); place++) {
+            for (int w = wordStart[place]; w < wordStart[place + 1]; w++) {
+                int t = rank[wordTokens[w]];
+                if (lastPlace[t] != place) {
+                    lastPlace[t] = place;
+                    listStart[t + 1]++;
+                }
+            }
+        }
+        for (int t = 0; t < tokenCount; t++) {
+            listStart[t + 1] += listStart[t];
+        }
+        int[] lists = new int[listStart[tokenCount]];
+        int[] filled = Arrays.copyOf(listStart, tokenCount);
+        Arrays.fill(lastPlace, -1);
+        for (int place = 0; place < places.size(); place++) {
+            for (int w = wordStart[place]; w < wordStart[place + 1]; w++) {
+                int t = rank[wordTokens[w]];
+                if (lastPlace[t] != place) {
+                    lastPlace[t] = place;
+                    lists[filled[t]++] = place;
+                }
+            }
+        }
+
+        Fst.Builder tokenBuilder = new Fst.Builder();
+        ByteArrayOutputStream postingBytes = new ByteArrayOutputStream();
+        int[] starts = new int[tokenCount + 1];
+        for (int t = 0; t < tokenCount; t++) {
+            tokenBuilder.add(sortedTokens[t], t);
+            starts[t] = postingBytes.size();
+            int previous = 0;
+            for (int l = listStart[t]; l < listStart[t + 1]; l++) {
+                Varint.write(postingBytes, lists[l] - previous);
+                previous = lists[l];
+            }
+        }
+        starts[tokenCount] = postingBytes.size();
+        int tokensRoot = tokenBuilder.finish();
+        byte[] tokenStates = tokenBuilder.toByteArray();
+
+        byte[] placeBytes = places.toByteArray();
+
+        ByteBuffer out = ByteBuffer.allocate(HEADER_BYTES + nameStates.length
+                + tokenStates.length + placeBytes.length + 4 * starts.length
+                + postingBytes.size());
+        out.putInt(MAGIC).putInt(VERSION).putLong(osmLength).putLong(osmModified)
+                .putInt(places.size()).putInt(tokenCount).putInt(namesRoot)
+                .putInt(nameStates.length).putInt(tokensRoot).putInt(tokenStates.length)
+                .putInt(placeBytes.length);
+        out.put(nameStates).put(tokenStates).put(placeBytes);
+        for (int start : starts) {
+            out.putInt(start);
+        }
+        out.put(postingBytes.toByteArray());
+        return out.array();
+    }
+
+    /** Gets the number of places. */
+    public int size() {
+        return placeCount;
+    }
+
+    /** Gets the places, numbered as the results of searches. */
+    public PlaceIndex places() {
+        return places;
+    }
+
+    /**
+     * Gets the place with the given cleaned name.
+     * @return the place, or -1 if there is none.
+     */
+    public int find(CharSequence cleanName) {
+        return names.get(cleanName);
+    }
+
+    /**
+     * Finds the most important places whose cleaned names start with prefix.
+     * @param limit the most places to find.
+     * @return the places, the most important first.
+     */
+    public int[] getTopCompletions(CharSequence prefix, int limit) {
+        int[] at = names.walk(prefix);
+        return at == null ? new int[0] : names.smallest(at[0], at[1], limit);
+    }
+
+    /**
+     * Finds the places whose cleaned names start with a prefix at most maxEdits insertions,
+     * deletions or substitutions away from query, by walking the names together with the rows
+     * of the Levenshtein distance table of query, which simulates a Levenshtein automaton.
+     * @param maxEdits the most edits allowed, usually 1 or 2.
+     * @param limit the most places to find.
+     * @return the places, those needing the fewest edits first, then the most important.
+     */
+    public int[] getFuzzyCompletions(CharSequence query, int maxEdits, int limit) {
+        if (limit <= 0) {
+            return new int[0];
+        }
+        /* rows[d] is the row of the distance table for the state at depth d being visited:
+         * rows[d][i] is the edit distance between the first i letters of query and the
+         * letters leading to the state. No state deeper than this can be within maxEdits. */
+        int[][] rows = new int[query.length() + maxEdits + 2][query.length() + 1];
+        for (int i = 0; i <= query.length(); i++) {
+            rows[0][i] = i;
+        }
+        HashMap<Integer, Integer> edits = new HashMap<>();
+        fuzzyVisit(names.root(), 0, 0, query, maxEdits, limit, rows, edits);
+
+        /* Fewer edits first, then by importance. */
+        int[] found = new int[Math.min(limit, edits.size())];
+        int count = 0;
+        for (int e = 0; e <= maxEdits && count < found.length; e++) {
+            int[] places = new int[edits.size()];
+            int matches = 0;
+            for (Map.Entry<Integer, Integer> entry : edits.entrySet()) {
+                if (entry.getValue() == e) {
+                    places[matches++] = entry.getKey();
+                }
+            }
+            Arrays.sort(places, 0, matches);
+            for (int m = 0; m < matches && count < found.length; m++) {
+                found[count++] = places[m];
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Visits state at depth, reached with the given output and whose distance table row is
+     * rows[depth], and the states after it. The best places under every state whose prefix is
+     * within maxEdits of query are recorded in edits with the fewest edits found for them.
+     */
+    private void fuzzyVisit(int state, int output, int depth, CharSequence query,
+            int maxEdits, int limit, int[][] rows, HashMap<Integer, Integer> edits) {
+        int[] row = rows[depth];
+        int distance = row[query.length()];
+        int best = Integer.MAX_VALUE;
+        for (int d : row) {
+            best = Math.min(best, d);
+        }
+        if (distance <= maxEdits) {
+            for (int place : names.smallest(state, output, limit)) {
+                edits.merge(place, distance, Math::min);
+            }
+            /* The distance of a longer prefix is never below the smallest in its row. */
+            if (best >= distance) {
+                return;
+            }
+        } else if (best > maxEdits) {
+            return;
+        }
+        for (int i = 0, arcs = names.arcCount(state); i < arcs; i++) {
+            int arc = names.arc(state, i);
+            char letter = names.label(arc);
+            int[] next = rows[depth + 1];
+            next[0] = depth + 1;
+            for (int q = 1; q <= query.length(); q++) {
+                int substitution = row[q - 1] + (query.charAt(q - 1) == letter ? 0 : 1);
+                next[q] = Math.min(substitution, Math.min(row[q], next[q - 1]) + 1);
+            }
+            fuzzyVisit(names.target(arc), output + names.output(arc), depth + 1, query,
+                    maxEdits, limit, rows, edits);
+        }
+    }
+
+    /**
+     * Finds the most important places whose names have every token of query, the last token
+     * as the start of a word. The posting lists of the whole tokens are intersected, and the
+     * lists of the tokens starting with the last one read in turn, each only as far as its
+     * places in the intersection could still be among the most important found.
+     * @param query normalized by TextNormalizer; its tokens are read in place.
+     * @param limit the most places to find.
+     * @return the places, the most important first.
+     */
+    public int[] searchWords(CharSequence query, int limit) {
+        if (query.length() == 0 || limit <= 0) {
+            return new int[0];
+        }
+        /* The places with all of the whole tokens, or null for any place. */
+        int[] candidates = null;
+        int start = 0;
+        for (int end = 0; end < query.length(); end++) {
+            if (query.charAt(end) != ' ') {
+                continue;
+            }
+            int index = tokens.get(query, start, end);
+            if (index < 0) {
+                return new int[0];
+            }
+            int[] posting = decode(index);
+            candidates = candidates == null ? posting : intersect(candidates, posting);
+            start = end + 1;
+        }
+        int[] at = tokens.walk(query, start, query.length());
+        if (at == null) {
+            return new int[0];
+        }
+        int first = tokens.firstOutput(at[0], at[1]);
+        int last = tokens.lastOutput(at[0], at[1]);
+
+        /* The best places so far, in order. A token's list is read only while its places could
+         * still be among them, so a short prefix costs little more per token than its first
+         * place, and nothing is allocated per token. */
+        int[] found = new int[limit];
+        int count = 0;
+        ByteBuffer list = postings.duplicate();
+        for (int token = first; token <= last; token++) {
+            list.limit(postingStarts.getInt(4 * token + 4));
+            list.position(postingStarts.getInt(4 * token));
+            int place = 0;
+            while (list.hasRemaining()) {
+                place += Varint.read(list);
+                if (count == limit && place >= found[count - 1]) {
+                    break;
+                }
+                if (candidates != null && Arrays.binarySearch(candidates, place) < 0) {
+                    continue;
+                }
+                int slot = Arrays.binarySearch(found, 0, count, place);
+                if (slot >= 0) {
+                    continue;
+                }
+                slot = -slot - 1;
+                System.arraycopy(found, slot, found, slot + 1, Math.min(count, limit - 1) - slot);
+                found[slot] = place;
+                count = Math.min(count + 1, limit);
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /**
+     * Decodes the posting list of a token.
+     */
+    private int[] decode(int token) {
+        int start = postingStarts.getInt(4 * token);
+        ByteBuffer list = postings.slice(start, postingStarts.getInt(4 * token + 4) - start);
+        int[] places = new int[list.remaining()];
+        int count = 0;
+        int place = 0;
+        while (list.hasRemaining()) {
+            place += Varint.read(list);
+            places[count++] = place;
+        }
+        return Arrays.copyOf(places, count);
+    }
+
+    /**
+     * Intersects two sorted lists of places.
+     */
+    private static int[] intersect(int[] a, int[] b) {
+        int[] both = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                both[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(both, count);
+    }
+}
@@ -0,0 +1,28 @@
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Offline pass that builds the search index of the place names in the OSM file and writes it
+ * to the file the server memory-maps at startup, so the server neither builds the index nor
+ * holds it on the heap. Run it from the server's directory whenever the OSM file changes:
+ * <pre>java SearchIndexBuilder</pre>
+ * The index is stamped with the size and modification time of the OSM file, and the server
+ * refuses to start if they no longer match.
+ */
+public class SearchIndexBuilder {
+
+    public static void main(String[] args) throws IOException {
+        long start = System.nanoTime();
+        /* Stamp the index with the OSM file as it was before reading it, so that a change
+         * while it is read makes the index stale rather than wrongly current. */
+        File osm = new File(MapServer.OSM_DB_PATH);
+        long osmLength = osm.length();
+        long osmModified = osm.lastModified();
+        GraphDB g = new GraphDB(MapServer.OSM_DB_PATH);
+        PlaceIndex.Builder places = new PlaceIndex.Builder(g, TextNormalizer::clean);
+        File file = new File(MapServer.SEARCH_INDEX_PATH);
+        int bytes = SearchIndex.write(file, places, osmLength, osmModified);
+        System.out.printf("Wrote %s: %d places in %d bytes, %.1fs%n", file, places.size(), bytes,
+                (System.nanoTime() - start) / 1e9);
+    }
+}
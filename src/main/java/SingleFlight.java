@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Coalesces concurrent loads of the same key: the first thread to ask for a key loads it, and
+ * threads asking for the key while it loads wait for that result instead of loading it again.
+ * Nothing is kept once a load is done; caching the result is up to the caller.
+ * Waiting threads can be interrupted. If the loading thread is interrupted and its load fails,
+ * the load is abandoned rather than failed, and the threads still waiting for it load it anew.
+ * @param <V> the type of the values loaded.
+ */
+public class SingleFlight<V> {
+    private final HashMap<String, CompletableFuture<V>> loading = new HashMap<>();
+    private long loads;
+    private long coalesced;
+
+    /** Loads a value. */
+    public interface Loader<V> {
+        V load() throws IOException;
+    }
+
+    /**
+     * Loads the value of key, or waits for the load already running for it.
+     * @throws IOException if the load threw it, in every thread waiting for the load.
+     * @throws InterruptedIOException if the thread was interrupted while waiting.
+     */
+    public V get(String key, Loader<V> loader) throws IOException {
+        boolean waited = false;
+        while (true) {
+            CompletableFuture<V> flight;
+            CompletableFuture<V> own = null;
+            synchronized (this) {
+                flight = loading.get(key);
+                if (flight == null) {
+                    own = new CompletableFuture<>();
+                    loading.put(key, own);
+                    loads++;
+                } else if (!waited) {
+                    waited = true;
+                    coalesced++;
+                }
+            }
+            if (own != null) {
+                return load(key, own, loader);
+            }
+            try {
+                return await(flight);
+            } catch (CancellationException e) {
+                /* The load was abandoned; try again, perhaps as the loader. */
+            }
+        }
+    }
+
+    private V load(String key, CompletableFuture<V> own, Loader<V> loader) throws IOException {
+        try {
+            V value = loader.load();
+            land(key, own);
+            own.complete(value);
+            return value;
+        } catch (IOException | RuntimeException | Error e) {
+            land(key, own);
+            if (Thread.currentThread().isInterrupted() || e instanceof InterruptedIOException) {
+                /* Only this thread was cancelled; the others need not fail with it. */
+                own.cancel(false);
+            } else {
+                own.completeExceptionally(e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Removes a load before its result is given to the threads waiting for it, so that a
+     * thread trying again after an abandoned load starts a new one.
+     */
+    private synchronized void land(String key, CompletableFuture<V> own) {
+        loading.remove(key, own);
+    }
+
+    private static <V> V await(CompletableFuture<V> flight) throws IOException {
+        try {
+            return flight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a load");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /** Gets the number of loads run. */
+    public synchronized long loads() {
+        return loads;
+    }
+
+    /** Gets the number of requests that waited for a load already running. */
+    public synchronized long coalesced() {
+        return coalesced;
+    }
+}
@@ -0,0 +1,146 @@
+import java.text.Normalizer;
+import java.util.Locale;
+
+/**
+ * Normalizes text for search, so that names and queries compare equal however they are
+ * spelled: letters are decomposed (NFKD) with their accents stripped and case-folded, so
+ * "Caf&eacute;" and "CAFE" are both "cafe" and "Stra&szlig;e" is "strasse". Letters and
+ * digits of every script are kept, apostrophes are dropped, and anything else separates words,
+ * which are joined by single spaces.
+ * <p>A normalizer writes into a char buffer it reuses and is itself the normalized text, so
+ * searching with it makes no garbage. It is not thread-safe; every thread has its own through
+ * local(). Characters other than ASCII are folded once each and remembered.
+ */
+public class TextNormalizer implements CharSequence {
+    private static final ThreadLocal<TextNormalizer> LOCAL =
+            ThreadLocal.withInitial(TextNormalizer::new);
+    /* The folded form of every char seen that is not ASCII, with a space for a separator.
+     * Filled lazily; racing threads compute the same immutable string. */
+    private static final String[] FOLDS = new String[Character.MAX_VALUE + 1];
+
+    private char[] buffer = new char[64];
+    private int length;
+    private boolean separated;
+
+    /** Gets the normalizer of this thread. */
+    public static TextNormalizer local() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Normalizes text into a new string, for indexing.
+     */
+    public static String clean(String text) {
+        return local().normalize(text).toString();
+    }
+
+    /**
+     * Normalizes text, replacing the text normalized before.
+     * @return this normalizer, holding the normalized text.
+     */
+    public TextNormalizer normalize(CharSequence text) {
+        length = 0;
+        separated = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                if (c >= 'a' && c <= 'z' || c >= '0' && c <= '9') {
+                    append(c);
+                } else if (c >= 'A' && c <= 'Z') {
+                    append((char) (c + ('a' - 'A')));
+                } else if (c != '\'') {
+                    separated = true;
+                }
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toLowerCase(Character.toCodePoint(c, text.charAt(++i)));
+                if (Character.isLetterOrDigit(codePoint)) {
+                    append(Character.highSurrogate(codePoint));
+                    append(Character.lowSurrogate(codePoint));
+                } else {
+                    separated = true;
+                }
+            } else {
+                String fold = fold(c);
+                for (int f = 0; f < fold.length(); f++) {
+                    if (fold.charAt(f) == ' ') {
+                        separated = true;
+                    } else {
+                        append(fold.charAt(f));
+                    }
+                }
+            }
+        }
+        return this;
+    }
+
+    private void append(char c) {
+        if (separated && length > 0) {
+            put(' ');
+        }
+        separated = false;
+        put(c);
+    }
+
+    private void put(char c) {
+        if (length == buffer.length) {
+            char[] grown = new char[2 * length];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+        buffer[length++] = c;
+    }
+
+    /**
+     * Gets the folded form of a char that is not ASCII: its compatibility decomposition without
+     * combining marks, case-folded, with a space for every char that is neither a letter nor a
+     * digit and nothing for an apostrophe.
+     */
+    private static String fold(char c) {
+        String fold = FOLDS[c];
+        if (fold == null) {
+            String decomposed = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFKD);
+            StringBuilder folded = new StringBuilder();
+            for (int i = 0; i < decomposed.length(); i++) {
+                char d = decomposed.charAt(i);
+                int type = Character.getType(d);
+                if (type == Character.NON_SPACING_MARK
+                        || type == Character.COMBINING_SPACING_MARK
+                        || type == Character.ENCLOSING_MARK
+                        || d == '\'' || d == '\u2019' || d == '\u02BC') {
+                    continue;
+                }
+                folded.append(Character.isLetterOrDigit(d) ? d : ' ');
+            }
+            /* Lower, upper then lower case folds letters such as sharp s, whose upper case is
+             * two letters, the way full case folding does. */
+            fold = folded.toString().toLowerCase(Locale.ROOT).toUpperCase(Locale.ROOT)
+                    .toLowerCase(Locale.ROOT);
+            FOLDS[c] = fold;
+        }
+        return fold;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        return buffer[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length);
+    }
+}
@@ -0,0 +1,116 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Offline pass that finds tiles with identical pixels, such as open water, empty land or the
+ * blank edges beyond the data, and writes the alias index that maps every duplicate to one
+ * canonical tile. TileStore reads the index at startup so duplicates share one decoded image.
+ * Run it from the server's directory:
+ * <pre>java TileDeduplicator [--prune]</pre>
+ * With --prune the duplicate files are deleted too, since the server reads them through their
+ * canonical tile. Rerunning after a prune keeps the aliases of the deleted files.
+ */
+public class TileDeduplicator {
+
+    public static void main(String[] args) throws IOException {
+        boolean prune = Arrays.asList(args).contains("--prune");
+        File root = new File(MapServer.IMG_ROOT);
+        File index = new File(root, TileStore.ALIAS_INDEX);
+        /* Aliases of tiles already pruned are kept, since their files are gone. */
+        TreeMap<String, String> aliases = new TreeMap<>();
+        for (Map.Entry<String, String> alias : TileStore.readAliases(index).entrySet()) {
+            if (!new File(root, alias.getKey() + ".png").isFile()) {
+                aliases.put(alias.getKey(), alias.getValue());
+            }
+        }
+
+        File[] files = root.listFiles((dir, name) -> name.endsWith(".png"));
+        if (files == null) {
+            System.out.println("No tiles in " + root);
+            return;
+        }
+        /* Shallower tiles come first, so they become the canonical tiles. */
+        Arrays.sort(files, Comparator.comparingInt((File f) -> f.getName().length())
+                .thenComparing(File::getName));
+
+        HashMap<String, String> canonicalByHash = new HashMap<>();
+        TreeMap<Integer, int[]> countsByDepth = new TreeMap<>();
+        long duplicateFileBytes = 0;
+        long duplicatePixelBytes = 0;
+        for (File file : files) {
+            String name = file.getName().substring(0, file.getName().length() - ".png".length());
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                System.out.println("Could not read tile " + name);
+                continue;
+            }
+            int[] counts = countsByDepth.computeIfAbsent(QuadTree.tileDepth(name),
+                    depth -> new int[2]);
+            counts[0]++;
+            String canonical = canonicalByHash.putIfAbsent(pixelHash(image), name);
+            if (canonical != null) {
+                aliases.put(name, canonical);
+                counts[1]++;
+                duplicateFileBytes += file.length();
+                duplicatePixelBytes += 4L * image.getWidth() * image.getHeight();
+            }
+        }
+
+        try (PrintWriter out = new PrintWriter(index)) {
+            for (Map.Entry<String, String> alias : aliases.entrySet()) {
+                out.println(alias.getKey() + " " + alias.getValue());
+            }
+        }
+        if (prune) {
+            for (String alias : aliases.keySet()) {
+                new File(root, alias + ".png").delete();
+            }
+        }
+
+        System.out.printf("%6s %8s %11s%n", "depth", "tiles", "duplicates");
+        for (Map.Entry<Integer, int[]> depth : countsByDepth.entrySet()) {
+            System.out.printf("%6d %8d %11d%n", depth.getKey(), depth.getValue()[0],
+                    depth.getValue()[1]);
+        }
+        System.out.printf("%d aliases written to %s%n", aliases.size(), index);
+        System.out.printf("Duplicate tiles: %.1f MB of files%s, %.1f MB of decoded images%n",
+                duplicateFileBytes / 1e6, prune ? " deleted" : "", duplicatePixelBytes / 1e6);
+    }
+
+    /**
+     * Hashes the pixels of an image, so that tiles encoded differently but looking the same
+     * hash the same.
+     * @return the SHA-1 of the image size and its ARGB pixels, in hexadecimal.
+     */
+    static String pixelHash(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] row = new int[width];
+        ByteBuffer bytes = ByteBuffer.allocate(4 * width);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(ByteBuffer.allocate(8).putInt(width).putInt(height).array());
+            for (int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                bytes.clear();
+                bytes.asIntBuffer().put(row);
+                digest.update(bytes.array());
+            }
+            return TileStore.toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
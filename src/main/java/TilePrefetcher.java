@@ -0,0 +1,181 @@
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes tiles into the tile cache before they are asked for. It watches the raster requests
+ * of each client, predicts the next viewport from how the last one moved and zoomed, and reads
+ * the predicted tiles, the ring of tiles around the viewport and the tiles of the next zoom
+ * level on background threads.
+ * Prefetching has its own budget so it never crowds out real requests: a few low priority
+ * threads, a bounded queue whose overflow is dropped rather than waited on, and a bounded
+ * share of memory for the images, kept apart from the tiles requests have used.
+ * @see TileStore#prefetch
+ */
+public class TilePrefetcher {
+    /** The most clients whose last viewport is remembered. */
+    private static final int MAX_CLIENTS = 1024;
+    /** The most tiles queued for one observed request. */
+    private static final int MAX_TILES_PER_REQUEST = 64;
+
+    private final TileStore store;
+    private final ThreadPoolExecutor executor;
+    /* The last viewport of each client, least recently seen first. */
+    private final LinkedHashMap<String, TileRange> lastRanges =
+            new LinkedHashMap<String, TileRange>(16, 0.75F, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TileRange> eldest) {
+                    return size() > MAX_CLIENTS;
+                }
+            };
+    /* Tiles queued or being read, so a tile is only queued once. */
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param store the tiles to prefetch.
+     * @param threads the number of prefetch threads.
+     * @param queueLimit the most tiles waiting to be prefetched; more are dropped.
+     */
+    public TilePrefetcher(TileStore store, int threads, int queueLimit) {
+        this.store = store;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueLimit), runnable -> {
+                    Thread thread = new Thread(runnable, "tile-prefetch");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Records that client asked for the tiles in range, and prefetches the tiles it is likely
+     * to ask for next.
+     * @param client identifies the client, e.g. its address.
+     * @param range the tiles of the raster the client asked for.
+     */
+    public void observe(String client, TileRange range) {
+        TileRange last;
+        synchronized (lastRanges) {
+            last = lastRanges.put(client, range);
+        }
+        /* The client's older predictions are stale now, so they make room for the new ones. */
+        executor.getQueue().removeIf(task -> {
+            PrefetchTask prefetch = (PrefetchTask) task;
+            if (prefetch.client.equals(client)) {
+                pending.remove(prefetch.name);
+                return true;
+            }
+            return false;
+        });
+        int queued = 0;
+        for (String name : predict(last, range)) {
+            if (queued == MAX_TILES_PER_REQUEST) {
+                break;
+            }
+            if (prefetch(client, name)) {
+                queued++;
+            }
+        }
+    }
+
+    /**
+     * Gets the tiles to prefetch after a client moved from the viewport last to range, most
+     * likely first: the viewport panned once more at the same velocity, the ring of tiles
+     * around range, and the viewport at the next depth in the direction of the last zoom,
+     * deeper if it did not zoom.
+     * @param last the client's previous viewport, or null if there was none.
+     * @param range the client's current viewport.
+     */
+    static LinkedHashSet<String> predict(TileRange last, TileRange range) {
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        if (last != null && last.depth == range.depth) {
+            int dx = range.minX + range.maxX - last.minX - last.maxX;
+            int dy = range.minY + range.maxY - last.minY - last.maxY;
+            dx = Integer.signum(dx) * Math.min(Math.abs(dx) / 2, range.width());
+            dy = Integer.signum(dy) * Math.min(Math.abs(dy) / 2, range.height());
+            if (dx != 0 || dy != 0) {
+                addTiles(names, new TileRange(range.depth, range.minX + dx, range.minY + dy,
+                        range.maxX + dx, range.maxY + dy), range);
+            }
+        }
+        addTiles(names, new TileRange(range.depth, range.minX - 1, range.minY - 1,
+                range.maxX + 1, range.maxY + 1), range);
+        if (last != null && last.depth > range.depth) {
+            addTiles(names, new TileRange(range.depth - 1, range.minX / 2, range.minY / 2,
+                    range.maxX / 2, range.maxY / 2), range);
+        } else {
+            /* Zooming in halves the viewport around its center. */
+            int quarterWidth = range.width() / 2;
+            int quarterHeight = range.height() / 2;
+            addTiles(names, new TileRange(range.depth + 1, 2 * range.minX + quarterWidth,
+                    2 * range.minY + quarterHeight, 2 * range.maxX + 1 - quarterWidth,
+                    2 * range.maxY + 1 - quarterHeight), range);
+        }
+        return names;
+    }
+
+    /**
+     * Adds the names of the tiles of range that exist, clipped to the tree, to names. Tiles of
+     * the current viewport are left out, since the request itself reads them.
+     * @param current the current viewport.
+     */
+    private static void addTiles(LinkedHashSet<String> names, TileRange range,
+            TileRange current) {
+        if (range.depth < 0 || range.depth > QuadTree.MAX_DEPTH) {
+            return;
+        }
+        int last = (1 << range.depth) - 1;
+        for (int y = Math.max(range.minY, 0); y <= Math.min(range.maxY, last); y++) {
+            for (int x = Math.max(range.minX, 0); x <= Math.min(range.maxX, last); x++) {
+                if (range.depth != current.depth || x < current.minX || x > current.maxX
+                        || y < current.minY || y > current.maxY) {
+                    names.add(QuadTree.tileName(range.depth, x, y));
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues the tile <name> to be decoded into the tile cache, unless it is already cached,
+     * already queued, or the queue is full.
+     * @return whether the tile was queued.
+     */
+    private boolean prefetch(String client, String name) {
+        if (store.isCached(name) || !pending.add(name)) {
+            return false;
+        }
+        try {
+            executor.execute(new PrefetchTask(client, name));
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.remove(name);
+            return false;
+        }
+    }
+
+    /** Decodes one tile into the tile cache on behalf of a client. */
+    private class PrefetchTask implements Runnable {
+        final String client;
+        final String name;
+
+        PrefetchTask(String client, String name) {
+            this.client = client;
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            try {
+                store.prefetch(name);
+            } finally {
+                pending.remove(name);
+            }
+        }
+    }
+}
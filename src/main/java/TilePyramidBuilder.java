@@ -0,0 +1,291 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Offline tool that generates the tile pyramid down to QuadTree.MAX_DEPTH, writing the tiles
+ * straight into the tile folder. Tiles come either from the deepest level that already exists,
+ * by enlarging each quadrant of a tile into a child tile, or from a base mosaic covering the
+ * root tile, which is cut into every level. Quadrants are built in parallel with fork-join.
+ * Run it from the server's directory, with the depth to build down to:
+ * <pre>java -Dbearmaps.maxDepth=9 TilePyramidBuilder [--mosaic image] [--overwrite]</pre>
+ * Existing tiles are kept unless --overwrite is given. Running TileDeduplicator afterwards
+ * folds the many identical tiles of a deep level into aliases.
+ */
+public class TilePyramidBuilder {
+    private static final int TILE_SIZE = MapServer.TILE_SIZE;
+
+    private final String root;
+    private final TileStore store;
+    private final int maxDepth;
+    private final boolean overwrite;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong kept = new AtomicLong();
+
+    TilePyramidBuilder(String root, int maxDepth, boolean overwrite) {
+        this.root = root;
+        this.store = new TileStore(root, new QuadTree());
+        this.maxDepth = maxDepth;
+        this.overwrite = overwrite;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String mosaic = null;
+        boolean overwrite = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--mosaic")) {
+                mosaic = args[++i];
+            } else if (args[i].equals("--overwrite")) {
+                overwrite = true;
+            }
+        }
+        TilePyramidBuilder builder =
+                new TilePyramidBuilder(MapServer.IMG_ROOT, QuadTree.MAX_DEPTH, overwrite);
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        long start = System.nanoTime();
+        if (mosaic != null) {
+            BufferedImage image = ImageIO.read(new File(mosaic));
+            if (image == null) {
+                System.out.println("Could not read mosaic " + mosaic);
+                return;
+            }
+            System.out.println("Cutting levels 0 to " + builder.maxDepth + " from " + mosaic);
+            pool.invoke(builder.new MosaicTask("", 0, image, 0, 0, image.getWidth(),
+                    image.getHeight()));
+        } else {
+            int baseDepth = builder.deepestLevel();
+            if (baseDepth < 0) {
+                System.out.println("No tiles in " + builder.root);
+                return;
+            }
+            System.out.println("Growing levels " + (baseDepth + 1) + " to " + builder.maxDepth
+                    + " from level " + baseDepth);
+            pool.invoke(builder.new BaseLevelTask("", 0, baseDepth));
+        }
+        builder.report(System.nanoTime() - start, pool.getParallelism());
+    }
+
+    /**
+     * Gets the deepest level of which the upper left tile exists, or -1 if not even the root
+     * tile exists.
+     */
+    int deepestLevel() {
+        int depth = -1;
+        while (depth < maxDepth && store.getFile(QuadTree.tileName(depth + 1, 0, 0)).isFile()) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Walks down the quadrants to the base level, then grows each base tile downwards.
+     */
+    @SuppressWarnings("serial")
+    private class BaseLevelTask extends RecursiveAction {
+        private final String name;
+        private final int depth;
+        private final int baseDepth;
+
+        BaseLevelTask(String name, int depth, int baseDepth) {
+            this.name = name;
+            this.depth = depth;
+            this.baseDepth = baseDepth;
+        }
+
+        @Override
+        protected void compute() {
+            if (depth < baseDepth) {
+                invokeAll(new BaseLevelTask(name + "1", depth + 1, baseDepth),
+                        new BaseLevelTask(name + "2", depth + 1, baseDepth),
+                        new BaseLevelTask(name + "3", depth + 1, baseDepth),
+                        new BaseLevelTask(name + "4", depth + 1, baseDepth));
+                return;
+            }
+            try {
+                BufferedImage image = ImageIO.read(store.getFile(fileName(name)));
+                if (image == null) {
+                    System.out.println("Could not read tile " + fileName(name));
+                    return;
+                }
+                new SubdivideTask(name, depth, image).compute();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Writes the four children of a tile, each enlarged from a quadrant of the tile's image,
+     * and then their children, down to maxDepth. A child that is kept is not enlarged, and its
+     * children are grown from its own image.
+     */
+    @SuppressWarnings("serial")
+    private class SubdivideTask extends RecursiveAction {
+        private final String name;
+        private final int depth;
+        private final BufferedImage image;
+
+        SubdivideTask(String name, int depth, BufferedImage image) {
+            this.name = name;
+            this.depth = depth;
+            this.image = image;
+        }
+
+        @Override
+        protected void compute() {
+            if (depth >= maxDepth) {
+                return;
+            }
+            double half = image.getWidth() / 2.0;
+            SubdivideTask[] children = new SubdivideTask[4];
+            for (int quadrant = 0; quadrant < 4; quadrant++) {
+                String child = name + (quadrant + 1);
+                /* A kept child may have more detail than its parent's quadrant; grow from it. */
+                BufferedImage tile = readKept(child);
+                if (tile == null) {
+                    tile = cut(image, half * (quadrant % 2), half * (quadrant / 2), half, half);
+                    write(child, tile);
+                }
+                children[quadrant] = new SubdivideTask(child, depth + 1, tile);
+            }
+            invokeAll(children);
+        }
+    }
+
+    /**
+     * Writes a tile cut from a region of the mosaic, and then its children, down to maxDepth.
+     */
+    @SuppressWarnings("serial")
+    private class MosaicTask extends RecursiveAction {
+        private final String name;
+        private final int depth;
+        private final BufferedImage mosaic;
+        private final double x;
+        private final double y;
+        private final double width;
+        private final double height;
+
+        MosaicTask(String name, int depth, BufferedImage mosaic, double x, double y,
+                double width, double height) {
+            this.name = name;
+            this.depth = depth;
+            this.mosaic = mosaic;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        protected void compute() {
+            write(name, cut(mosaic, x, y, width, height));
+            if (depth >= maxDepth) {
+                return;
+            }
+            double w = width / 2;
+            double h = height / 2;
+            invokeAll(new MosaicTask(name + "1", depth + 1, mosaic, x, y, w, h),
+                    new MosaicTask(name + "2", depth + 1, mosaic, x + w, y, w, h),
+                    new MosaicTask(name + "3", depth + 1, mosaic, x, y + h, w, h),
+                    new MosaicTask(name + "4", depth + 1, mosaic, x + w, y + h, w, h));
+        }
+    }
+
+    /**
+     * Scales the region of source at (x, y) of size width by height to a whole tile.
+     */
+    static BufferedImage cut(BufferedImage source, double x, double y, double width,
+            double height) {
+        BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = tile.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        if (x == (int) x && y == (int) y && width == (int) width && height == (int) height) {
+            g.drawImage(source, 0, 0, TILE_SIZE, TILE_SIZE, (int) x, (int) y,
+                    (int) (x + width), (int) (y + height), null);
+        } else {
+            g.scale(TILE_SIZE / width, TILE_SIZE / height);
+            g.translate(-x, -y);
+            g.drawImage(source, 0, 0, null);
+        }
+        g.dispose();
+        return tile;
+    }
+
+    /**
+     * Writes the tile <name> unless it already exists and overwrite is off.
+     */
+    private void write(String name, BufferedImage tile) {
+        File file = store.getFile(fileName(name));
+        if (!overwrite && file.isFile()) {
+            kept.incrementAndGet();
+            return;
+        }
+        try {
+            ImageIO.write(tile, "png", new File(root + fileName(name) + ".png"));
+            written.incrementAndGet();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads the tile <name> if it already exists and overwrite is off.
+     * @return the tile, or null if it is to be written, or could not be read.
+     */
+    private BufferedImage readKept(String name) {
+        File file = store.getFile(fileName(name));
+        if (overwrite || !file.isFile()) {
+            return null;
+        }
+        try {
+            BufferedImage tile = ImageIO.read(file);
+            if (tile == null) {
+                System.out.println("Could not read tile " + fileName(name));
+                return null;
+            }
+            kept.incrementAndGet();
+            return tile;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** The root tile is stored as root.png, and every other tile under its quadrant digits. */
+    private static String fileName(String name) {
+        return name.isEmpty() ? "root" : name;
+    }
+
+    /**
+     * Prints the tiles written per second and the memory used. Every worker holds the images
+     * along its current path down the pyramid, so the ceiling grows with the parallelism and
+     * the number of levels built, but not with the number of tiles.
+     */
+    private void report(long nanos, int parallelism) {
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        long tileBytes = 4L * TILE_SIZE * TILE_SIZE;
+        long ceiling = tileBytes * 5 * parallelism * (maxDepth + 1);
+        double seconds = nanos / 1e9;
+        System.out.printf("%d tiles written, %d kept, in %.1f s: %.0f tiles/s%n", written.get(),
+                kept.get(), seconds, written.get() / seconds);
+        System.out.printf("Peak heap %.1f MB of %.1f MB max; working images bounded by "
+                + "%.1f MB for %d workers%n", peakHeap / 1e6,
+                Runtime.getRuntime().maxMemory() / 1e6, ceiling / 1e6, parallelism);
+    }
+}
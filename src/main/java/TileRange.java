@@ -0,0 +1,59 @@
+/**
+ * A rectangle of tiles at one depth of the QuadTree, in the columns minX to maxX and the rows
+ * minY to maxY, inclusive, counting from the upper left tile.
+ */
+public class TileRange {
+    final int depth;
+    final int minX;
+    final int minY;
+    final int maxX;
+    final int maxY;
+
+    public TileRange(int depth, int minX, int minY, int maxX, int maxY) {
+        this.depth = depth;
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+    }
+
+    /**
+     * Gets the range covered by a raster's tiles.
+     * @param names the tile names, indexed by [row][column], as returned by getRasterTiles.
+     */
+    public static TileRange of(String[][] names) {
+        String upperLeft = names[0][0];
+        String lowerRight = names[names.length - 1][names[0].length - 1];
+        return new TileRange(QuadTree.tileDepth(upperLeft), QuadTree.tileX(upperLeft),
+                QuadTree.tileY(upperLeft), QuadTree.tileX(lowerRight),
+                QuadTree.tileY(lowerRight));
+    }
+
+    public int width() {
+        return maxX - minX + 1;
+    }
+
+    public int height() {
+        return maxY - minY + 1;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TileRange)) {
+            return false;
+        }
+        TileRange other = (TileRange) o;
+        return depth == other.depth && minX == other.minX && minY == other.minY
+                && maxX == other.maxX && maxY == other.maxY;
+    }
+
+    @Override
+    public int hashCode() {
+        return (((depth * 31 + minX) * 31 + minY) * 31 + maxX) * 31 + maxY;
+    }
+
+    @Override
+    public String toString() {
+        return depth + "/" + minX + "-" + maxX + "/" + minY + "-" + maxY;
+    }
+}
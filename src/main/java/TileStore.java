@@ -0,0 +1,306 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.imageio.ImageIO;
+
+/**
+ * The tile images on disk, named by their QuadTree node, e.g. img/1423.png.
+ * Decoded tiles are cached on their QNode; the encoded bytes are never decoded when a tile is
+ * served as is. Tiles decoded ahead of time by the prefetcher are held apart, in a least
+ * recently used cache of bounded size, and only move to their QNode once a request uses them,
+ * so wrong guesses are evicted rather than kept for good.
+ * Tiles listed in the alias index as duplicates of a canonical tile are read through that
+ * tile, so they share its file, its ETag and its decoded image.
+ * @see TileDeduplicator
+ */
+public class TileStore {
+    /** The alias index in the tile folder. Each line is a duplicate tile and its canonical. */
+    static final String ALIAS_INDEX = "tiles.idx";
+
+    private final String root;
+    private final QuadTree tree;
+    /* The canonical tile of every duplicate tile, by tile name. */
+    private final HashMap<String, String> aliases;
+    /* Strong ETags of the tiles served so far, by canonical tile name. */
+    private final ConcurrentHashMap<String, String> eTags = new ConcurrentHashMap<>();
+    /* Images found already decoded, and read from disk. */
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    /* How long reading and decoding tiles from disk takes. */
+    private final LatencyHistogram reads = new LatencyHistogram();
+    /* Prefetched images not asked for yet, by canonical tile name, least recently used first. */
+    private final LinkedHashMap<String, BufferedImage> prefetched =
+            new LinkedHashMap<>(16, 0.75F, true);
+    private final long prefetchBudget;
+    private long prefetchedBytes;
+
+    /**
+     * @param root the folder holding the tiles, ending in a slash.
+     * @param tree the QuadTree whose nodes cache the decoded tiles.
+     */
+    public TileStore(String root, QuadTree tree) {
+        this(root, tree, 0);
+    }
+
+    /**
+     * @param root the folder holding the tiles, ending in a slash.
+     * @param tree the QuadTree whose nodes cache the decoded tiles.
+     * @param prefetchBudget the most bytes of decoded images to hold for prefetched tiles no
+     * request has used yet.
+     */
+    public TileStore(String root, QuadTree tree, long prefetchBudget) {
+        this.root = root;
+        this.tree = tree;
+        this.aliases = readAliases(new File(root + ALIAS_INDEX));
+        this.prefetchBudget = prefetchBudget;
+    }
+
+    /**
+     * Reads an alias index, in which each line is a duplicate tile name and its canonical
+     * tile name, separated by a space.
+     * @return the canonical tile of every duplicate, empty if there is no index.
+     */
+    static HashMap<String, String> readAliases(File index) {
+        HashMap<String, String> aliases = new HashMap<>();
+        if (!index.isFile()) {
+            return aliases;
+        }
+        try {
+            for (String line : Files.readAllLines(index.toPath())) {
+                String[] pair = line.trim().split(" ");
+                if (pair.length == 2) {
+                    aliases.put(pair[0], pair[1]);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Could not read the tile alias index");
+        }
+        return aliases;
+    }
+
+    /**
+     * Gets the canonical tile of <name>, which is <name> itself unless it is a duplicate.
+     * @param name the tile name, with or without the .png ending.
+     * @return the canonical tile name, without the .png ending.
+     */
+    public String canonical(String name) {
+        if (name.endsWith(".png")) {
+            name = name.substring(0, name.length() - ".png".length());
+        }
+        return aliases.getOrDefault(name, name);
+    }
+
+    /**
+     * Gets the file of the tile <name>, which is the file of its canonical tile.
+     * @param name the tile name, with or without the .png ending.
+     */
+    public File getFile(String name) {
+        return new File(root + canonical(name) + ".png");
+    }
+
+    /**
+     * Gets the image of the tile <name>, reading it from disk the first time it is needed.
+     * A duplicate tile shares the image of its canonical tile.
+     * @param name the tile name, with or without the .png ending.
+     * @return the tile image, or null if it could not be read.
+     */
+    public BufferedImage getImage(String name) {
+        MapEvents.TileRead event = new MapEvents.TileRead();
+        event.begin();
+        QNode node = tree.getNode(name);
+        String source = "memory";
+        File file = null;
+        BufferedImage image = node.image;
+        if (image != null) {
+            hits.increment();
+        } else {
+            String tile = canonical(name);
+            if (!name.equals(tile) && !name.equals(tile + ".png")) {
+                source = "alias";
+                image = getImage(tile);
+            } else if ((image = takePrefetched(tile)) != null) {
+                source = "prefetch";
+                hits.increment();
+            } else {
+                source = "disk";
+                misses.increment();
+                file = getFile(name);
+                image = read(file);
+            }
+            node.image = image;
+        }
+        if (event.shouldCommit()) {
+            event.tile = name;
+            event.source = source;
+            event.bytes = file == null ? 0 : file.length();
+            event.commit();
+        }
+        return image;
+    }
+
+    /**
+     * Decodes the tile <name> ahead of a request for it, into the cache of prefetched images,
+     * evicting the least recently prefetched images that no request has used to stay within
+     * the prefetch budget. Does nothing if the tile is already decoded.
+     * @param name the tile name, with or without the .png ending.
+     */
+    public void prefetch(String name) {
+        String tile = canonical(name);
+        if (isCached(tile)) {
+            return;
+        }
+        BufferedImage image = read(getFile(tile));
+        if (image == null || tree.getNode(tile).image != null) {
+            return;
+        }
+        long size = imageBytes(image);
+        synchronized (prefetched) {
+            if (size > prefetchBudget || prefetched.containsKey(tile)) {
+                return;
+            }
+            prefetched.put(tile, image);
+            prefetchedBytes += size;
+            Iterator<BufferedImage> eldest = prefetched.values().iterator();
+            while (prefetchedBytes > prefetchBudget) {
+                prefetchedBytes -= imageBytes(eldest.next());
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes the prefetched image of the canonical tile <tile>, if there is one.
+     */
+    private BufferedImage takePrefetched(String tile) {
+        synchronized (prefetched) {
+            BufferedImage image = prefetched.remove(tile);
+            if (image != null) {
+                prefetchedBytes -= imageBytes(image);
+            }
+            return image;
+        }
+    }
+
+    /**
+     * Reads and decodes a tile image, timing it.
+     * @return the image, or null if it could not be read.
+     */
+    private BufferedImage read(File file) {
+        long start = System.nanoTime();
+        try {
+            return ImageIO.read(file);
+        } catch (IOException e) {
+            System.out.println("Could not read tile " + file.getName());
+            return null;
+        } finally {
+            reads.recordSince(start);
+        }
+    }
+
+    /**
+     * Gets the number of bytes the pixels of a decoded image take.
+     */
+    static long imageBytes(BufferedImage image) {
+        DataBuffer data = image.getRaster().getDataBuffer();
+        return (long) data.getSize() * data.getNumBanks()
+                * DataBuffer.getDataTypeSize(data.getDataType()) / 8;
+    }
+
+    /**
+     * Tells whether the image of the tile <name> has already been decoded, for a request or
+     * ahead of one.
+     * @param name the tile name, with or without the .png ending.
+     */
+    public boolean isCached(String name) {
+        if (tree.getNode(name).image != null) {
+            return true;
+        }
+        synchronized (prefetched) {
+            return prefetched.containsKey(canonical(name));
+        }
+    }
+
+    /** Gets the number of bytes of prefetched images no request has used yet. */
+    public long prefetchedBytes() {
+        synchronized (prefetched) {
+            return prefetchedBytes;
+        }
+    }
+
+    /** Gets the number of images asked for that were already decoded. */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /** Gets the number of images read from disk. */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /** Gets the times taken to read and decode tiles from disk. */
+    public LatencyHistogram reads() {
+        return reads;
+    }
+
+    /**
+     * Gets a strong ETag for the tile <name>: the quoted SHA-1 of its canonical file. The file
+     * is hashed the first time and the tag remembered after that.
+     * @param name the tile name, with or without the .png ending.
+     * @throws IOException if the tile could not be read.
+     */
+    public String getETag(String name) throws IOException {
+        String canonical = canonical(name);
+        String eTag = eTags.get(canonical);
+        if (eTag == null) {
+            eTag = "\"" + sha1(Files.readAllBytes(getFile(canonical).toPath())) + "\"";
+            eTags.put(canonical, eTag);
+        }
+        return eTag;
+    }
+
+    /**
+     * Copies the encoded bytes of the tile <name> to out, without decoding them.
+     * @param name the tile name, with or without the .png ending.
+     * @param out the stream to be written to. It is not closed.
+     * @return the number of bytes written.
+     * @throws IOException if the tile could not be read or out could not be written to.
+     */
+    public long copyTo(String name, OutputStream out) throws IOException {
+        return Files.copy(getFile(name).toPath(), out);
+    }
+
+    /**
+     * Gets the SHA-1 of bytes as a hexadecimal string.
+     */
+    static String sha1(byte[] bytes) {
+        try {
+            return toHex(MessageDigest.getInstance("SHA-1").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Gets bytes as a hexadecimal string.
+     */
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,44 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes and reads variable length integers, as in protocol buffers: seven bits per byte, least
+ * significant first, with the high bit set on every byte but the last. Small numbers, such as
+ * the gaps between sorted ids or between the points of a line, take one or two bytes.
+ */
+public class Varint {
+
+    /**
+     * Writes value, read as unsigned, to out.
+     */
+    static void write(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Reads a value written by write from the position of in, and moves the position past it.
+     */
+    static int read(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Maps a signed value to an unsigned one of similar size, so that small negative values
+     * are written in few bytes too: 0, -1, 1, -2 become 0, 1, 2, 3.
+     */
+    static int zigzag(int value) {
+        return value << 1 ^ value >> 31;
+    }
+}
@@ -0,0 +1,206 @@
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Road vector tiles, so the browser can draw the roads itself instead of downloading them as
+ * pixels. Tile (z, x, y) holds the road segments that intersect the tile of the QuadTree
+ * scheme, clipped to the tile plus a small buffer.
+ * <p>Coordinates are snapped to a grid over the tile, finer for deeper tiles, which is how
+ * tiles are simplified per zoom: segments shorter than a grid cell disappear and segments that
+ * snap onto each other are kept once. The segments left are chained into polylines where they
+ * meet end to end.
+ * <p>A tile is a sequence of unsigned LEB128 varints: the grid size (the extent), the number of
+ * polylines, then for every polyline its number of points followed by the points. Each point is
+ * the zigzag-encoded change in x, then in y, from the point before it, which for the very first
+ * point is (0, 0). x grows to the right and y downwards, with the tile spanning 0 to extent.
+ */
+public class VectorTiles {
+    /** The grid size of the deepest tiles. */
+    static final int MAX_EXTENT = 4096;
+    /** The grid size is halved for every level above QuadTree.MAX_DEPTH, down to this. */
+    static final int MIN_EXTENT = 256;
+    /** Segments are clipped this fraction of the extent beyond the tile edges. */
+    private static final int BUFFER_DIVISOR = 64;
+
+    private final EdgeGrid roads;
+    private final ByteLruCache cache;
+
+    /**
+     * @param roads the road segments to draw.
+     * @param cacheBytes the most bytes of generated tiles to cache.
+     */
+    public VectorTiles(EdgeGrid roads, long cacheBytes) {
+        this.roads = roads;
+        this.cache = new ByteLruCache(cacheBytes);
+    }
+
+    /**
+     * Gets the encoded tile (z, x, y), from the cache if it was generated before.
+     * @param depth the depth z of the tile.
+     * @param column the column x of the tile, from the left.
+     * @param row the row y of the tile, from the top.
+     */
+    public byte[] getTile(int depth, int column, int row) {
+        String key = depth + "/" + column + "/" + row;
+        byte[] tile = cache.get(key);
+        if (tile == null) {
+            tile = encode(roads, depth, column, row);
+            cache.put(key, tile);
+        }
+        return tile;
+    }
+
+    /** Gets the tile cache, e.g. for its statistics. */
+    ByteLruCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Gets the grid size of tiles of the given depth.
+     */
+    static int extent(int depth) {
+        int shift = Math.min(Math.max(QuadTree.MAX_DEPTH - depth, 0), Integer.SIZE - 2);
+        return Math.max(MIN_EXTENT, MAX_EXTENT >> shift);
+    }
+
+    /**
+     * Generates the tile (z, x, y) from the road segments.
+     */
+    static byte[] encode(EdgeGrid roads, int depth, int column, int row) {
+        double tileLon = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / (1L << depth);
+        double tileLat = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / (1L << depth);
+        double ullon = MapServer.ROOT_ULLON + column * tileLon;
+        double ullat = MapServer.ROOT_ULLAT - row * tileLat;
+        int extent = extent(depth);
+        int buffer = extent / BUFFER_DIVISOR;
+        double bufferLon = tileLon * buffer / extent;
+        double bufferLat = tileLat * buffer / extent;
+        double minLon = ullon - bufferLon;
+        double maxLon = ullon + tileLon + bufferLon;
+        double maxLat = ullat + bufferLat;
+        double minLat = ullat - tileLat - bufferLat;
+
+        /* Snap every clipped segment to the grid, as two points packed into a long. A point is
+         * packed into an int, as x and y offset by the buffer so that they are not negative. */
+        SegmentList segments = new SegmentList();
+        double[] clipped = new double[4];
+        roads.forEachIntersecting(minLon, maxLat, maxLon, minLat, i -> {
+            EdgeGrid.clip(roads.x1[i], roads.y1[i], roads.x2[i], roads.y2[i], minLon, maxLat,
+                    maxLon, minLat, clipped);
+            int a = pack((int) Math.round((clipped[0] - ullon) / tileLon * extent) + buffer,
+                    (int) Math.round((ullat - clipped[1]) / tileLat * extent) + buffer);
+            int b = pack((int) Math.round((clipped[2] - ullon) / tileLon * extent) + buffer,
+                    (int) Math.round((ullat - clipped[3]) / tileLat * extent) + buffer);
+            if (a == b) {
+                return;
+            }
+            segments.add(a < b ? (long) a << 32 | b : (long) b << 32 | a);
+        });
+        return write(unique(segments.items, segments.size), extent, buffer);
+    }
+
+    /**
+     * Sorts the first n segments and removes the repeated ones.
+     * @return the distinct segments, in order.
+     */
+    private static long[] unique(long[] segments, int n) {
+        Arrays.sort(segments, 0, n);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || segments[i] != segments[distinct - 1]) {
+                segments[distinct++] = segments[i];
+            }
+        }
+        return Arrays.copyOf(segments, distinct);
+    }
+
+    /**
+     * Chains the sorted, distinct segments into polylines and encodes them.
+     */
+    private static byte[] write(long[] segments, int extent, int buffer) {
+        int n = segments.length;
+        /* Both ends of every segment, sorted by point, so that the segments meeting at a point
+         * can be found by binary search. */
+        long[] ends = new long[2 * n];
+        for (int s = 0; s < n; s++) {
+            ends[2 * s] = (segments[s] >>> 32) << 32 | s;
+            ends[2 * s + 1] = (segments[s] & 0xFFFFFFFFL) << 32 | s;
+        }
+        Arrays.sort(ends);
+        boolean[] used = new boolean[n];
+
+        ByteArrayOutputStream polylines = new ByteArrayOutputStream(8 * n + 16);
+        int[] points = new int[n + 1];
+        int polylineCount = 0;
+        int lastX = 0;
+        int lastY = 0;
+        for (int s = 0; s < n; s++) {
+            if (used[s]) {
+                continue;
+            }
+            used[s] = true;
+            points[0] = (int) (segments[s] >>> 32);
+            points[1] = (int) segments[s];
+            int length = 2;
+            int next;
+            while ((next = unusedSegmentAt(ends, used, points[length - 1])) >= 0) {
+                used[next] = true;
+                int a = (int) (segments[next] >>> 32);
+                points[length] = a == points[length - 1] ? (int) segments[next] : a;
+                length++;
+            }
+            Varint.write(polylines, length);
+            for (int p = 0; p < length; p++) {
+                int x = (points[p] >>> 16) - buffer;
+                int y = (points[p] & 0xFFFF) - buffer;
+                Varint.write(polylines, Varint.zigzag(x - lastX));
+                Varint.write(polylines, Varint.zigzag(y - lastY));
+                lastX = x;
+                lastY = y;
+            }
+            polylineCount++;
+        }
+
+        ByteArrayOutputStream tile = new ByteArrayOutputStream(polylines.size() + 8);
+        Varint.write(tile, extent);
+        Varint.write(tile, polylineCount);
+        tile.writeBytes(polylines.toByteArray());
+        return tile.toByteArray();
+    }
+
+    /**
+     * Finds a segment that ends at point and is not used yet.
+     * @return the segment's index, or -1 if there is none.
+     */
+    private static int unusedSegmentAt(long[] ends, boolean[] used, int point) {
+        long first = (long) point << 32;
+        int i = Arrays.binarySearch(ends, first);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        for (; i < ends.length && ends[i] >>> 32 == point; i++) {
+            int s = (int) ends[i];
+            if (!used[s]) {
+                return s;
+            }
+        }
+        return -1;
+    }
+
+    /** A growable array of segments. */
+    private static class SegmentList {
+        long[] items = new long[16];
+        int size;
+
+        void add(long segment) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, 2 * size);
+            }
+            items[size++] = segment;
+        }
+    }
+
+    private static int pack(int x, int y) {
+        return x << 16 | y;
+    }
+}
@@ -10,7 +10,7 @@
 var params = {ullat: 37.88, ullon: -122.27625, lrlat: 37.83, lrlon: -122.22,
               w: $(window).width(), h: $(window).height()};
 var route_params = {};
-var map; var dest;
+var map; var dest; var route_canvas;
 var tx = 0; var ty = 0;
 var rtx; var rty;
 var markers = [];
@@ -23,6 +23,12 @@ var img_w, img_h;
 var wdpp = 0.00004291534423828125; // Starting wdpp for level 3
 var hdpp = 0.00003388335630702399; // Starting hdpp for level 3
 var max_level = 7; var min_level = 2; // Level limits based on pulled data
+// Root tile bounds, as in MapServer
+var ROOT_ULLAT = 37.892195547244356, ROOT_ULLON = -122.2998046875,
+    ROOT_LRLAT = 37.82280243352756, ROOT_LRLON = -122.2119140625;
+var TILE_SIZE = 256;
+// Open map.html?tiles to compose the map from /tiles in the browser instead of /raster
+var tile_mode = /[?&]tiles(=|&|$)/.test(document.location.search);
 
 // Compute lat and lon by window size
 function real_lrlat() { return params["ullat"] - hdpp * params["h"]; }
@@ -37,8 +43,15 @@ $( document ).ready(function() {
     }
     var raster_server = host + "/raster"
     var search = host + "/search"
-    map = document.getElementById("map");
+    var tile_server = host + "/tiles"
+    if (tile_mode) {
+        document.getElementById("map").style.display = 'none';
+        map = document.getElementById("tiles");
+    } else {
+        map = document.getElementById("map");
+    }
     dest = document.getElementById("dest");
+    route_canvas = document.getElementById("route");
     dest.style.visibility = 'hidden';
     params["lrlon"] = real_lrlon();
     params["lrlat"] = real_lrlat();
@@ -48,13 +61,16 @@ $( document ).ready(function() {
 
     // Search bar
     $( "#tags" ).autocomplete({
-          source: search,
+          // Suggestions tolerate a typo or two
+          source: search + "?fuzzy=true",
           minLength: 2,
           select: function (event, ui) {
               $.get({
                   async: true,
                   url: search,
-                  data: { term: ui.item.value, full: true},
+                  // The locations nearest the middle of the view come first
+                  data: { term: ui.item.value, full: true, ullat: params["ullat"],
+                          ullon: params["ullon"], lrlat: real_lrlat(), lrlon: real_lrlon() },
                   success: function(data) {
                       removeMarkers();
                       for (var i = 0; i < data.length; i++) {
@@ -133,7 +149,7 @@ $( document ).ready(function() {
     });
 
     // Prevent image dragging
-    $('img').on('dragstart', function(event) { event.preventDefault(); });
+    $(document).on('dragstart', 'img', function(event) { event.preventDefault(); });
 
     // Allow for window resizing
     window.onresize = function(event) {
@@ -254,12 +270,17 @@ $( document ).ready(function() {
     }
 
     function updateImg() {
+        if (tile_mode) {
+            updateTiles();
+            return;
+        }
         // Synchronous ajax call for image update. Could be async for better experience
         // but then user spam locks up the server.
         $.get({
             async: false,
             url: raster_server,
-            data: jQuery.extend(params, route_params),
+            // Ask for the route as coordinates so the raster itself stays cacheable
+            data: jQuery.extend({}, params, route_params, {route_overlay: "vector"}),
             success: function(data) {
                 if (data.query_success) {
                     console.log("Updating map");
@@ -278,6 +299,7 @@ $( document ).ready(function() {
                     ty = (params["ullat"] - ullat_bound) * (1 / hdpp);
                     rtx = (route_params["end_lon"] - params["ullon"]) * (1 / wdpp) - dest.width / 2 - tx;
                     rty = - (route_params["end_lat"] - params["ullat"]) * (1 / hdpp) - dest.height - ty;
+                    drawRoute(data.route_overlay);
                     updateMarkers();
                 }
             },
@@ -285,8 +307,86 @@ $( document ).ready(function() {
         });
     }
 
+    // Picks the tile depth the same way MapServer.getMapRaster does
+    function tileDepth() {
+        var query_dpp = (params["lrlon"] - params["ullon"]) / params["w"];
+        var depth = 1;
+        var dpp = (ROOT_LRLON - ROOT_ULLON) / TILE_SIZE;
+        while (dpp > query_dpp && depth != max_level + 1) {
+            dpp /= 2;
+            depth++;
+        }
+        return depth - 1;
+    }
+
+    // Composes the visible tiles in the browser. Tiles are plain static images, so ones
+    // already seen come from the browser cache and the server does no work for them.
+    function updateTiles() {
+        var depth = tileDepth();
+        var n = Math.pow(2, depth);
+        var tile_w = (ROOT_LRLON - ROOT_ULLON) / n;
+        var tile_h = (ROOT_ULLAT - ROOT_LRLAT) / n;
+        var clamp = function(i) { return Math.max(0, Math.min(n - 1, i)); };
+        var x0 = clamp(Math.floor((params["ullon"] - ROOT_ULLON) / tile_w));
+        var x1 = clamp(Math.floor((params["lrlon"] - ROOT_ULLON) / tile_w));
+        var y0 = clamp(Math.floor((ROOT_ULLAT - params["ullat"]) / tile_h));
+        var y1 = clamp(Math.floor((ROOT_ULLAT - params["lrlat"]) / tile_h));
+        $(map).empty();
+        for (var y = y0; y <= y1; y++) {
+            for (var x = x0; x <= x1; x++) {
+                $('<img/>', {
+                    src: tile_server + "/" + depth + "/" + x + "/" + y,
+                    class: 'tile'
+                }).css({left: (x - x0) * TILE_SIZE, top: (y - y0) * TILE_SIZE})
+                  .appendTo($(map));
+            }
+        }
+        ullon_bound = ROOT_ULLON + x0 * tile_w;
+        ullat_bound = ROOT_ULLAT - y0 * tile_h;
+        lrlon_bound = ROOT_ULLON + (x1 + 1) * tile_w;
+        lrlat_bound = ROOT_ULLAT - (y1 + 1) * tile_h;
+        current_level = depth;
+        img_w = (x1 - x0 + 1) * TILE_SIZE;
+        img_h = (y1 - y0 + 1) * TILE_SIZE;
+        wdpp = (lrlon_bound - ullon_bound) / img_w;
+        hdpp = (ullat_bound - lrlat_bound) / img_h;
+        tx = - (params["ullon"] - ullon_bound) * (1 / wdpp);
+        ty = (params["ullat"] - ullat_bound) * (1 / hdpp);
+        rtx = (route_params["end_lon"] - params["ullon"]) * (1 / wdpp) - dest.width / 2 - tx;
+        rty = - (route_params["end_lat"] - params["ullat"]) * (1 / hdpp) - dest.height - ty;
+        drawRoute(null);
+        updateMarkers();
+    }
+
+    // Draws the route overlay, a list of [lon, lat] pairs, over the current raster bounds,
+    // in the same style as MapServer.drawRouteHelper
+    function drawRoute(route) {
+        route_canvas.width = route ? img_w : 0; // resizing also clears the canvas
+        route_canvas.height = route ? img_h : 0;
+        if (!route) {
+            return;
+        }
+        var ctx = route_canvas.getContext("2d");
+        ctx.strokeStyle = "rgba(108, 181, 230, 0.78)";
+        ctx.lineWidth = 5;
+        ctx.lineCap = "round";
+        ctx.lineJoin = "round";
+        ctx.beginPath();
+        for (var i = 0; i < route.length; i++) {
+            var x = (route[i][0] - ullon_bound) / wdpp;
+            var y = (ullat_bound - route[i][1]) / hdpp;
+            if (i == 0) {
+                ctx.moveTo(x, y);
+            } else {
+                ctx.lineTo(x, y);
+            }
+        }
+        ctx.stroke();
+    }
+
     function updateT() {
         map.style.transform = "translateX(" + tx + "px) translateY(" + ty + "px)";
+        route_canvas.style.transform = map.style.transform;
         dest.style.transform = "translateX(" + (tx+rtx) + "px) translateY(" + (ty+rty) + "px)";
         for (var i = 0; i < markers.length; i++) {
             marker = markers[i];